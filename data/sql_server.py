@@ -30,16 +30,18 @@ def get_db_connection():
     return _local.connection
 
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
-    while True:
+def recv_null_terminated(sock: socket.socket, pending: bytearray) -> str:
+    """Read the next message. Bytes after its terminator stay in pending,
+    so clients may pipeline several messages before reading the responses."""
+    while b"\0" not in pending:
         chunk = sock.recv(1024)
         if not chunk:
             return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        pending += chunk
+    end = pending.index(b"\0")
+    msg = bytes(pending[:end])
+    del pending[:end + 1]
+    return msg.decode("utf-8", errors="replace")
 
 
 def init_database():
@@ -133,9 +135,10 @@ def handle_sql(sql_string: str) -> str:
 def handle_client(client_socket: socket.socket, addr):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
+    pending = bytearray()
     try:
         while True:
-            message = recv_null_terminated(client_socket)
+            message = recv_null_terminated(client_socket, pending)
             if message == "":
                 break
 
@@ -0,0 +1,77 @@
+package bgu.spl.net.impl.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Audit batches stored per second, and how long each one waits, in the
+ * embedded store or the Python SQL server. Every operation writes a batch of
+ * login records and waits until it is stored, as the audit writer does.
+ * "python" needs the SQL server on 127.0.0.1:7778.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+    @Param({ "embedded", "python" })
+    public String backend;
+
+    @Param({ "1", "256" })
+    public int batch;
+
+    private Path dir;
+    private Persistence persistence;
+    private List<AuditRecord> records;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (backend.equals("embedded")) {
+            dir = Files.createTempDirectory("persistence-bench");
+            persistence = EmbeddedPersistence.open(dir);
+        } else {
+            persistence = new SqlServerPersistence(new SqlConnectionPool("127.0.0.1", 7778, 4));
+        }
+        records = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            records.add(AuditRecord.login("bench-" + i, "2026-01-01 00:00:00"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public void write() {
+        persistence.write(records).join();
+    }
+}
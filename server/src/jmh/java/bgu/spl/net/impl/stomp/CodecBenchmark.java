@@ -0,0 +1,80 @@
+package bgu.spl.net.impl.stomp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StompMessageEncoderDecoder over SEND frames with bodies of the given size:
+ * decode turns one read buffer holding a whole frame into a StompFrame,
+ * decodeSplit gets the same frame in 512 byte reads as a slow socket would
+ * deliver it, encode builds a server frame and encodes it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private static final int READ_SIZE = 512;
+
+    @Param({ "64", "1024", "65536" })
+    public int bodySize;
+
+    private final StompMessageEncoderDecoder codec = new StompMessageEncoderDecoder();
+    private ByteBuffer frame;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder text = new StringBuilder(bodySize);
+        while (text.length() < bodySize) {
+            text.append("event name: goal\n");
+        }
+        body = text.substring(0, bodySize);
+        frame = ByteBuffer.wrap(("SEND\ndestination:/worldcup/groupA/Germany_Japan\nreceipt:17\n\n" + body + "\0")
+                .getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    public List<StompFrame> decode() {
+        return codec.decode(frame.duplicate());
+    }
+
+    @Benchmark
+    public StompFrame decodeSplit() {
+        ByteBuffer remaining = frame.duplicate();
+        StompFrame decoded = null;
+        while (remaining.hasRemaining()) {
+            ByteBuffer read = remaining.slice(remaining.position(), Math.min(READ_SIZE, remaining.remaining()));
+            remaining.position(remaining.position() + read.remaining());
+            List<StompFrame> frames = codec.decode(read);
+            if (!frames.isEmpty()) {
+                decoded = frames.get(0);
+            }
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(StompFrame.create(StompCommand.MESSAGE, body,
+                "subscription", "3", "message-id", "42", "destination", "/worldcup/groupA/Germany_Japan"));
+    }
+}
@@ -0,0 +1,84 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.CountingHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logins per second of clients connecting at once: every operation is a new
+ * connection sending CONNECT and then DISCONNECT, like a reconnect storm.
+ * Each thread logs in its own users; with "new" each login registers a user
+ * nobody used before, with "returning" the thread cycles through 1000 users
+ * registered by its earlier logins. The audit records are dropped when their
+ * queue fills, so no SQL server is needed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dstomp.audit.overflow=DROP", "-Dstomp.metrics.intervalMillis=0" })
+@Threads(4)
+public class LoginBenchmark {
+
+    private static final int RETURNING_USERS = 1000;
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        final ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({ "new", "returning" })
+        public String users;
+
+        private final String prefix = "bench-" + threads.getAndIncrement() + "-";
+        private int logins;
+        private StompFrame disconnect;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            disconnect = frame("DISCONNECT\n\n");
+        }
+
+        StompFrame nextConnect() {
+            int user = users.equals("new") ? logins++ : logins++ % RETURNING_USERS;
+            return frame("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + prefix + user
+                    + "\npasscode:bench\n\n");
+        }
+    }
+
+    @Benchmark
+    public boolean login(Server server, Client client) {
+        int id = server.connections.registerAndGetId(new CountingHandler<>());
+        StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl();
+        protocol.start(id, server.connections);
+        protocol.process(client.nextConnect());
+        boolean failed = protocol.shouldTerminate(); // an ERROR ends the connection
+        protocol.process(client.disconnect);
+        return failed;
+    }
+
+    private static StompFrame frame(String text) {
+        return StompFrame.parse((text + "\0").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.CountingHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StompMessagingProtocolImpl.process per command, on decoded frames and
+ * counting handlers: send is a SEND with a receipt reaching the channel's
+ * subscribers, subscribe a SUBSCRIBE / UNSUBSCRIBE pair with receipts, error
+ * a frame with an unknown command. CONNECT is measured by LoginBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtocolBenchmark {
+
+    private static final String CHANNEL = "/worldcup/groupA/Germany_Japan";
+
+    @Param({ "1", "100" })
+    public int subscribers;
+
+    private StompMessagingProtocolImpl protocol;
+    private StompFrame send;
+    private StompFrame subscribe;
+    private StompFrame unsubscribe;
+    private StompFrame unknown;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>();
+        for (int i = 0; i < subscribers; i++) {
+            int id = connections.registerAndGetId(new CountingHandler<>());
+            connections.subscribe(id, CHANNEL.substring(1), i);
+        }
+        int id = connections.registerAndGetId(new CountingHandler<>());
+        protocol = new StompMessagingProtocolImpl();
+        protocol.start(id, connections);
+        protocol.process(frame("SUBSCRIBE\ndestination:" + CHANNEL + "\nid:1\n\n"));
+
+        send = frame("SEND\ndestination:" + CHANNEL + "\nreceipt:9\n\n"
+                + "user: bench\nsource file: bench.json\nteam a: Germany\nteam b: Japan\nevent name: goal\ntime: 10\n");
+        subscribe = frame("SUBSCRIBE\ndestination:/worldcup/groupB/Spain_Italy\nid:2\nreceipt:10\n\n");
+        unsubscribe = frame("UNSUBSCRIBE\nid:2\nreceipt:11\n\n");
+        unknown = frame("PUBLISH\ndestination:" + CHANNEL + "\n\n");
+    }
+
+    @Benchmark
+    public void send() {
+        protocol.process(send);
+    }
+
+    @Benchmark
+    public void subscribe() {
+        protocol.process(subscribe);
+        protocol.process(unsubscribe);
+    }
+
+    @Benchmark
+    public void error() {
+        protocol.process(unknown);
+    }
+
+    private static StompFrame frame(String text) {
+        return StompFrame.parse((text + "\0").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,102 @@
+package bgu.spl.net.srv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submit throughput of the mailbox based ActorThreadPool against the previous
+ * implementation: several producer threads (reactor selector threads in the
+ * server) submit small runnables spread over a set of actors, and every
+ * invocation waits until its runnables ran.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActorThreadPoolBenchmark {
+
+    private static final int SUBMITS = 1024;
+
+    @Param({ "mailbox", "legacy" })
+    public String pool;
+
+    @Param({ "4" })
+    public int workers;
+
+    @Param({ "1", "64" })
+    public int actors;
+
+    private ActorThreadPool mailboxPool;
+    private LegacyActorThreadPool legacyPool;
+    private ActorThreadPool.Mailbox[] mailboxes;
+    private Object[] legacyActors;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mailboxes = new ActorThreadPool.Mailbox[actors];
+        legacyActors = new Object[actors];
+        for (int i = 0; i < actors; i++) {
+            mailboxes[i] = new ActorThreadPool.Mailbox();
+            legacyActors[i] = new Object();
+        }
+        if (pool.equals("mailbox")) {
+            mailboxPool = new ActorThreadPool(workers);
+        } else {
+            legacyPool = new LegacyActorThreadPool(workers);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mailboxPool != null) {
+            mailboxPool.shutdown();
+        }
+        if (legacyPool != null) {
+            legacyPool.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final AtomicLong done = new AtomicLong();
+        final Runnable task = done::incrementAndGet;
+        long expected;
+        int next;
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(SUBMITS)
+    public void submit(Producer producer) {
+        for (int i = 0; i < SUBMITS; i++) {
+            int actor = producer.next++ % actors;
+            if (mailboxPool != null) {
+                mailboxPool.submit(mailboxes[actor], producer.task);
+            } else {
+                legacyPool.submit(legacyActors[actor], producer.task);
+            }
+        }
+        producer.expected += SUBMITS;
+        while (producer.done.get() < producer.expected) {
+            Thread.onSpinWait();
+        }
+    }
+}
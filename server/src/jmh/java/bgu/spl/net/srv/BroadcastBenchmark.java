@@ -0,0 +1,113 @@
+package bgu.spl.net.srv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing one message to every subscriber of a channel: the subscriber
+ * snapshot walk of ConnectionsImpl against the lookups the protocol used to
+ * make (a boxed id set, two maps for the subscription id, one for the handler).
+ * The handlers only count the bytes, so the result is the registry overhead.
+ * fanOut is the snapshot walk through FanOut, split over the fan-out pool
+ * for the large channels (every subscriber has its own handler, so chunks
+ * never share one). publish is the whole ConnectionsImpl.publish path,
+ * retaining the message for replays on top of the fan-out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    private static final String CHANNEL = "worldcup/groupA/Germany_Japan";
+
+    @Param({ "1", "100", "10000" })
+    public int subscribers;
+
+    private ConnectionsImpl<Object> connections;
+    private long messageId;
+
+    // the registry as it was before the snapshots
+    private final Map<Integer, ConnectionHandler<Object>> legacyHandlers = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> legacyChannels = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<String, Integer>> legacySubscriptionIds = new ConcurrentHashMap<>();
+
+    private final ByteBuffer headers = ByteBuffer.wrap(
+            ("message-id:1\ndestination:/" + CHANNEL + "\n\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private final ByteBuffer body = ByteBuffer.wrap(
+            "user: a\nevent name: goal\n\0".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        connections = new ConnectionsImpl<>();
+        for (int i = 0; i < subscribers; i++) {
+            CountingHandler<Object> handler = new CountingHandler<>();
+            int id = connections.registerAndGetId(handler);
+            connections.subscribe(id, CHANNEL, i);
+
+            legacyHandlers.put(id, handler);
+            legacyChannels.computeIfAbsent(CHANNEL, k -> ConcurrentHashMap.newKeySet()).add(id);
+            legacySubscriptionIds.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(CHANNEL, i);
+        }
+        connections.getSubscribers(CHANNEL); // build the snapshot outside the measurement
+    }
+
+    @Benchmark
+    public void snapshot() {
+        for (ConnectionsImpl.Subscriber<Object> subscriber : connections.getSubscribers(CHANNEL)) {
+            subscriber.handler.sendEncoded(prefix(subscriber.subscriptionId), headers.duplicate(), body.duplicate());
+        }
+    }
+
+    @Benchmark
+    public void fanOut() {
+        FanOut.deliver(connections.getSubscribers(CHANNEL), subscriber ->
+                subscriber.handler.sendEncoded(prefix(subscriber.subscriptionId), headers.duplicate(), body.duplicate()));
+    }
+
+    @Benchmark
+    public void publish() {
+        connections.publish(CHANNEL, messageId++, (offset, shared) -> subscriber -> {
+            ByteBuffer[] frame = new ByteBuffer[shared.length + 1];
+            frame[0] = prefix(subscriber.subscriptionId);
+            for (int i = 0; i < shared.length; i++) {
+                frame[i + 1] = shared[i].duplicate();
+            }
+            subscriber.handler.sendEncoded(frame);
+        }, null, headers, body);
+    }
+
+    @Benchmark
+    public void legacy() {
+        Set<Integer> ids = legacyChannels.get(CHANNEL);
+        for (Integer id : ids) {
+            Map<String, Integer> mySubIds = legacySubscriptionIds.get(id);
+            int subscriptionId = mySubIds.get(CHANNEL);
+            ConnectionHandler<Object> handler = legacyHandlers.get(id);
+            handler.sendEncoded(prefix(subscriptionId), headers.duplicate(), body.duplicate());
+        }
+    }
+
+    private static ByteBuffer prefix(int subscriptionId) {
+        return ByteBuffer.wrap(("MESSAGE\nsubscription:" + subscriptionId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
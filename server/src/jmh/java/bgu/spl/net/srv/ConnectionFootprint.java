@@ -0,0 +1,122 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Heap retained per connection by the connection registry, at 100k
+ * connections subscribed to two channels each: ConnectionsImpl (one session
+ * record in an int keyed map) against the four boxed maps it used to keep.
+ * Not a JMH benchmark, the heap is measured around building each registry:
+ *
+ * java -cp target/benchmarks.jar bgu.spl.net.srv.ConnectionFootprint [connections]
+ */
+public class ConnectionFootprint {
+
+    private static final int CHANNELS = 100;
+    private static final int SUBSCRIPTIONS_PER_CONNECTION = 2;
+
+    public static void main(String[] args) {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        ConnectionHandler<Object> handler = new IdleHandler(); // shared, only the registry is measured
+        String[] channels = new String[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            channels[i] = "worldcup/group" + i + "/Team_Team";
+        }
+
+        // the first run warms up the classes, it is not reported
+        measure("warmup", 1000, n -> legacy(n, handler, channels));
+
+        report("legacy maps", connections, measure("legacy", connections, n -> legacy(n, handler, channels)));
+        report("ConnectionsImpl", connections, measure("sessions", connections, n -> sessions(n, handler, channels)));
+        report("ConcurrentHashMap<Integer, Object>", connections, measure("chm", connections, n -> {
+            Map<Integer, Object> map = new ConcurrentHashMap<>();
+            for (int i = 0; i < n; i++) {
+                map.put(i, handler);
+            }
+            return map;
+        }));
+        report("ConcurrentIntObjectMap<Object>", connections, measure("int map", connections, n -> {
+            ConcurrentIntObjectMap<Object> map = new ConcurrentIntObjectMap<>();
+            for (int i = 0; i < n; i++) {
+                map.put(i, handler);
+            }
+            return map;
+        }));
+    }
+
+    private static Object sessions(int n, ConnectionHandler<Object> handler, String[] channels) {
+        ConnectionsImpl<Object> registry = new ConnectionsImpl<>();
+        for (int i = 0; i < n; i++) {
+            int id = registry.registerAndGetId(handler);
+            for (int s = 0; s < SUBSCRIPTIONS_PER_CONNECTION; s++) {
+                registry.subscribe(id, channels[(i + s) % channels.length], s);
+            }
+        }
+        return registry;
+    }
+
+    // the maps ConnectionsImpl kept before the session records
+    private static Object legacy(int n, ConnectionHandler<Object> handler, String[] channels) {
+        Map<Integer, ConnectionHandler<Object>> connections = new ConcurrentHashMap<>();
+        Map<String, Set<Integer>> channelSubscribers = new ConcurrentHashMap<>();
+        Map<Integer, Set<String>> clientChannels = new ConcurrentHashMap<>();
+        Map<Integer, Map<String, Integer>> subscriptionIds = new ConcurrentHashMap<>();
+        for (int i = 0; i < n; i++) {
+            connections.put(i, handler);
+            clientChannels.put(i, ConcurrentHashMap.newKeySet());
+            subscriptionIds.put(i, new ConcurrentHashMap<>());
+            for (int s = 0; s < SUBSCRIPTIONS_PER_CONNECTION; s++) {
+                String channel = channels[(i + s) % channels.length];
+                channelSubscribers.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(i);
+                clientChannels.get(i).add(channel);
+                subscriptionIds.get(i).put(channel, s);
+            }
+        }
+        return new Object[] { connections, channelSubscribers, clientChannels, subscriptionIds };
+    }
+
+    private static long measure(String name, int connections, IntFunction<Object> build) {
+        long before = usedHeap();
+        Object registry = build.apply(connections);
+        long after = usedHeap();
+        if (registry.hashCode() == System.nanoTime()) {
+            System.out.println(name); // keeps the registry reachable until it was measured
+        }
+        return after - before;
+    }
+
+    private static void report(String name, int connections, long bytes) {
+        System.out.printf("%-36s %,12d bytes  %,8.1f bytes/connection%n", name, bytes, (double) bytes / connections);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class IdleHandler implements ConnectionHandler<Object> {
+        @Override
+        public void send(Object msg) {
+        }
+
+        @Override
+        public void sendEncoded(ByteBuffer... frameParts) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connection handler that only counts what it is asked to send, so a
+ * benchmark measures the server code in front of the socket
+ */
+public class CountingHandler<T> implements ConnectionHandler<T> {
+
+    private long frames;
+    private long bytes;
+
+    @Override
+    public void send(T msg) {
+        frames++;
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... frameParts) {
+        frames++;
+        for (ByteBuffer part : frameParts) {
+            bytes += part.remaining();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+}
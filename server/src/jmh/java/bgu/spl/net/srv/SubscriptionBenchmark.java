@@ -0,0 +1,65 @@
+package bgu.spl.net.srv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one connection joining and leaving a channel that already has the
+ * given number of subscribers, as a SUBSCRIBE / UNSUBSCRIBE pair does it:
+ * the session and trie updates plus the snapshot rebuilt by the next publish.
+ * A wildcard subscription invalidates every cached snapshot instead of one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubscriptionBenchmark {
+
+    private static final String CHANNEL = "worldcup/groupA/Germany_Japan";
+
+    @Param({ "1", "100", "10000" })
+    public int subscribers;
+
+    @Param({ "worldcup/groupA/Germany_Japan", "worldcup/#" })
+    public String pattern;
+
+    private ConnectionsImpl<Object> connections;
+    private int joining;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        connections = new ConnectionsImpl<>();
+        for (int i = 0; i < subscribers; i++) {
+            int id = connections.registerAndGetId(new CountingHandler<>());
+            connections.subscribe(id, CHANNEL, i);
+        }
+        joining = connections.registerAndGetId(new CountingHandler<>());
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe() {
+        connections.subscribe(joining, pattern, -1);
+        connections.unsubscribe(joining, pattern);
+    }
+
+    @Benchmark
+    public Object subscribeUnsubscribeAndMatch() {
+        connections.subscribe(joining, pattern, -1);
+        connections.unsubscribe(joining, pattern);
+        return connections.getSubscribers(CHANNEL);
+    }
+}
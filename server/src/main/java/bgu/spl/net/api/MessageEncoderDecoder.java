@@ -1,5 +1,10 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +16,40 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the buffer to the decoding process.
+     * the default implementation feeds them one by one to decodeNextByte,
+     * implementations should override it with a bulk scan and copy.
+     *
+     * @param buffer the bytes to consider, the buffer is consumed
+     * @return every message completed by these bytes in order (empty if none)
+     */
+    default List<T> decode(ByteBuffer buffer) {
+        List<T> messages = null;
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                }
+                messages.add(nextMessage);
+            }
+        }
+        return messages != null ? messages : Collections.emptyList();
+    }
+
+    /**
+     * add a range of bytes to the decoding process
+     *
+     * @param bytes  the array holding the bytes
+     * @param offset the index of the first byte to consider
+     * @param length the number of bytes to consider
+     * @return every message completed by these bytes in order (empty if none)
+     */
+    default List<T> decode(byte[] bytes, int offset, int length) {
+        return decode(ByteBuffer.wrap(bytes, offset, length));
+    }
+
     /**
      * encodes the given message to bytes array
      *
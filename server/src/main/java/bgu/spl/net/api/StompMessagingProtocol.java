@@ -14,4 +14,12 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+     * @return the message sent before closing a connection that does not read fast enough,
+     *         null to close it without one
+     */
+    default T slowConsumerError() {
+        return null;
+    }
 }
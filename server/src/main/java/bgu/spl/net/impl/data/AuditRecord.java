@@ -0,0 +1,45 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * One audit write waiting to be persisted. The timestamp is taken when the
+ * event happens, not when the record is written.
+ */
+public class AuditRecord {
+
+    public enum Kind {
+        REGISTER, LOGIN, LOGOUT, FILE_UPLOAD
+    }
+
+    public final Kind kind;
+    public final String username;
+    public final String timestamp;
+    public final String password; // REGISTER only
+    public final String filename; // FILE_UPLOAD only
+    public final String gameChannel; // FILE_UPLOAD only
+
+    private AuditRecord(Kind kind, String username, String timestamp, String password, String filename,
+            String gameChannel) {
+        this.kind = kind;
+        this.username = username;
+        this.timestamp = timestamp;
+        this.password = password;
+        this.filename = filename;
+        this.gameChannel = gameChannel;
+    }
+
+    public static AuditRecord register(String username, String password, String timestamp) {
+        return new AuditRecord(Kind.REGISTER, username, timestamp, password, null, null);
+    }
+
+    public static AuditRecord login(String username, String timestamp) {
+        return new AuditRecord(Kind.LOGIN, username, timestamp, null, null, null);
+    }
+
+    public static AuditRecord logout(String username, String timestamp) {
+        return new AuditRecord(Kind.LOGOUT, username, timestamp, null, null, null);
+    }
+
+    public static AuditRecord fileUpload(String username, String filename, String gameChannel, String timestamp) {
+        return new AuditRecord(Kind.FILE_UPLOAD, username, timestamp, null, filename, gameChannel);
+    }
+}
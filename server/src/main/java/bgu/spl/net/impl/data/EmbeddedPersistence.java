@@ -0,0 +1,228 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.ChannelLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The audit tables in this process: every batch of records is appended to
+ * a ChannelLog as one record, then applied to the tables kept in memory,
+ * users by name and the open logins by user. Opening the store replays the
+ * log. A write returns once its batch is forced to disk; batches written at
+ * the same time share one force.
+ */
+public class EmbeddedPersistence implements Persistence {
+
+    private static final int SEGMENT_BYTES = 16 << 20;
+
+    private final ChannelLog log;
+    // guards the tables and keeps them in log order, a lock so virtual threads do not pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private final NavigableMap<String, String[]> users = new TreeMap<>(); // name -> (username, password, registration_date)
+    private final List<String[]> logins = new ArrayList<>(); // (username, login_time, logout_time)
+    private final Map<String, List<String[]>> openLogins = new HashMap<>();
+    private final List<String[]> uploads = new ArrayList<>(); // (username, filename, upload_time, game_channel)
+
+    private EmbeddedPersistence(ChannelLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Opens the store in the directory, replaying what it holds
+     */
+    public static EmbeddedPersistence open(Path dir) throws IOException {
+        EmbeddedPersistence store = new EmbeddedPersistence(ChannelLog.open(dir, SEGMENT_BYTES));
+        store.log.read(0, (offset, payload) -> store.apply(decode(payload)));
+        System.out.println("Embedded store: recovered " + store.users.size() + " users, " + store.logins.size()
+                + " logins and " + store.uploads.size() + " file uploads from " + dir);
+        return store;
+    }
+
+    @Override
+    public CompletableFuture<Void> write(List<AuditRecord> records) {
+        long offset;
+        try {
+            ByteBuffer batch = encode(records);
+            lock.lock();
+            try {
+                offset = log.append(batch);
+                apply(records);
+            } finally {
+                lock.unlock();
+            }
+            log.sync(offset + 1);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // the same changes the Python server's statements make, see SqlServerPersistence.batchSql
+    private void apply(List<AuditRecord> records) {
+        for (AuditRecord record : records) {
+            switch (record.kind) {
+                case REGISTER:
+                    users.putIfAbsent(record.username,
+                            new String[] { record.username, record.password, record.timestamp });
+                    break;
+                case LOGIN: {
+                    String[] login = { record.username, record.timestamp, null };
+                    logins.add(login);
+                    openLogins.computeIfAbsent(record.username, u -> new ArrayList<>()).add(login);
+                    break;
+                }
+                case LOGOUT: {
+                    List<String[]> open = openLogins.remove(record.username);
+                    if (open != null) {
+                        for (String[] login : open) {
+                            login[2] = record.timestamp;
+                        }
+                    }
+                    break;
+                }
+                case FILE_UPLOAD:
+                    uploads.add(new String[] { record.username, record.filename, record.timestamp, record.gameChannel });
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public List<String[]> users(String after, String registeredSince, int limit) {
+        List<String[]> rows = new ArrayList<>();
+        lock.lock();
+        try {
+            for (String[] user : users.tailMap(after, false).values()) {
+                if (rows.size() == limit) {
+                    break;
+                }
+                if (registeredSince == null || user[2].compareTo(registeredSince) >= 0) {
+                    rows.add(new String[] { user[0], user[1] });
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return rows;
+    }
+
+    @Override
+    public List<String[]> registrations() {
+        List<String[]> rows = new ArrayList<>();
+        lock.lock();
+        try {
+            for (String[] user : users.values()) {
+                rows.add(new String[] { user[0], user[2] });
+            }
+        } finally {
+            lock.unlock();
+        }
+        rows.sort(Comparator.comparing(row -> row[1]));
+        return rows;
+    }
+
+    @Override
+    public List<String[]> loginHistory() {
+        return sortedCopy(logins, 1);
+    }
+
+    @Override
+    public List<String[]> fileUploads() {
+        return sortedCopy(uploads, 2);
+    }
+
+    // the rows by username, then the latest time first
+    private List<String[]> sortedCopy(List<String[]> table, int time) {
+        List<String[]> rows = new ArrayList<>();
+        lock.lock();
+        try {
+            for (String[] row : table) {
+                rows.add(row.clone());
+            }
+        } finally {
+            lock.unlock();
+        }
+        rows.sort(Comparator.<String[], String>comparing(row -> row[0])
+                .thenComparing(row -> row[time], Comparator.reverseOrder()));
+        return rows;
+    }
+
+    // [kind][count] then each record's strings: username, timestamp and its kind's fields,
+    // each its length (-1 for null) and UTF-8 bytes
+    private static ByteBuffer encode(List<AuditRecord> records) {
+        List<byte[]> strings = new ArrayList<>();
+        int length = 5;
+        for (AuditRecord record : records) {
+            length += add(strings, record.username) + add(strings, record.timestamp);
+            if (record.kind == AuditRecord.Kind.REGISTER) {
+                length += add(strings, record.password);
+            } else if (record.kind == AuditRecord.Kind.FILE_UPLOAD) {
+                length += add(strings, record.filename) + add(strings, record.gameChannel);
+            }
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        batch.put((byte) records.get(0).kind.ordinal()).putInt(records.size());
+        for (byte[] string : strings) {
+            if (string == null) {
+                batch.putInt(-1);
+            } else {
+                batch.putInt(string.length).put(string);
+            }
+        }
+        return batch.flip();
+    }
+
+    private static int add(List<byte[]> strings, String value) {
+        byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static List<AuditRecord> decode(ByteBuffer batch) {
+        AuditRecord.Kind kind = AuditRecord.Kind.values()[batch.get()];
+        int count = batch.getInt();
+        List<AuditRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String username = string(batch);
+            String timestamp = string(batch);
+            switch (kind) {
+                case REGISTER:
+                    records.add(AuditRecord.register(username, string(batch), timestamp));
+                    break;
+                case LOGIN:
+                    records.add(AuditRecord.login(username, timestamp));
+                    break;
+                case LOGOUT:
+                    records.add(AuditRecord.logout(username, timestamp));
+                    break;
+                case FILE_UPLOAD:
+                    String filename = string(batch);
+                    records.add(AuditRecord.fileUpload(username, filename, string(batch), timestamp));
+                    break;
+            }
+        }
+        return records;
+    }
+
+    private static String string(ByteBuffer batch) {
+        int length = batch.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        batch.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
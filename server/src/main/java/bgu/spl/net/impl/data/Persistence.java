@@ -0,0 +1,99 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the audit tables are kept: users, login_history and file_tracking.
+ * stomp.persistence selects the Python SQL server ("python", the default)
+ * or the embedded append-only store ("embedded").
+ * Rows are returned as their column values, times as "yyyy-MM-dd HH:mm:ss".
+ */
+public interface Persistence {
+
+    /**
+     * Writes records of one kind; a run of logouts holds every user once
+     *
+     * @return completed once the records are stored, exceptionally if they could not be
+     */
+    CompletableFuture<Void> write(List<AuditRecord> records);
+
+    /**
+     * Writes groups of records as write does, each group stored after the ones
+     * before it, so a logout finds the login of the same batch
+     *
+     * @return one future per group
+     */
+    default List<CompletableFuture<Void>> writeInOrder(List<List<AuditRecord>> groups) {
+        // write stores a group before it returns
+        List<CompletableFuture<Void>> results = new ArrayList<>(groups.size());
+        for (List<AuditRecord> group : groups) {
+            results.add(write(group));
+        }
+        return results;
+    }
+
+    /**
+     * @param after only users whose name sorts after it
+     * @param registeredSince only users registered since then, null - all of them
+     * @return up to limit (username, password) rows, by username
+     */
+    List<String[]> users(String after, String registeredSince, int limit) throws IOException;
+
+    /**
+     * @return (username, registration_date) rows, by registration date
+     */
+    List<String[]> registrations() throws IOException;
+
+    /**
+     * @return (username, login_time, logout_time) rows, by username and then the
+     *         latest login first; the logout time is null while logged in
+     */
+    List<String[]> loginHistory() throws IOException;
+
+    /**
+     * @return (username, filename, upload_time, game_channel) rows, by username
+     *         and then the latest upload first
+     */
+    List<String[]> fileUploads() throws IOException;
+
+    /**
+     * @return the store stomp.persistence selects, opened on first use
+     */
+    static Persistence getInstance() {
+        return Selected.instance;
+    }
+
+    /**
+     * Holds the selected store
+     */
+    final class Selected {
+        private static final String BACKEND = System.getProperty("stomp.persistence", "python");
+        private static final String DIR = System.getProperty("stomp.persistence.dir", "stomp-store");
+
+        static final Persistence instance = open();
+
+        private Selected() {
+        }
+
+        private static Persistence open() {
+            switch (BACKEND) {
+                case "python":
+                    return new SqlServerPersistence(SqlConnectionPool.getInstance());
+                case "embedded":
+                    try {
+                        return EmbeddedPersistence.open(Paths.get(DIR));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Cannot open the embedded store in " + DIR, e);
+                    }
+                default:
+                    throw new IllegalArgumentException("Unknown stomp.persistence: " + BACKEND
+                            + ", use 'python' or 'embedded'");
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.Histogram;
+import bgu.spl.net.srv.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small pool of long lived connections to the Python SQL server.
+ * Every connection is pipelined: statements are written as soon as they are
+ * submitted and a reader thread matches the null terminated responses to them
+ * in order. A broken connection fails its in flight statements and is opened
+ * again by the next statement submitted to it.
+ */
+public class SqlConnectionPool {
+
+    private static final String SQL_HOST = "127.0.0.1";
+    private static final int SQL_PORT = 7778;
+    private static final int POOL_SIZE = Integer.getInteger("stomp.sql.poolSize", 4);
+    private static final long TIMEOUT_MILLIS = Long.getLong("stomp.sql.timeoutMillis", 10_000);
+    private static final Histogram ROUND_TRIP_NANOS = Metrics.histogram("sql.roundTripNanos");
+
+    private final String host;
+    private final int port;
+    private final PooledConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder roundTripNanos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public SqlConnectionPool(String host, int port, int size) {
+        this.host = host;
+        this.port = port;
+        this.connections = new PooledConnection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new PooledConnection();
+        }
+    }
+
+    public static SqlConnectionPool getInstance() {
+        return Instance.instance;
+    }
+
+    /**
+     * Sends a statement without waiting for the statements before it to be answered
+     *
+     * @return the server response, completed exceptionally if the connection broke
+     */
+    public CompletableFuture<String> submit(String sql) {
+        PooledConnection connection = connections[Math.floorMod(nextConnection.getAndIncrement(), connections.length)];
+        return connection.submit(sql);
+    }
+
+    /**
+     * Sends statements over one connection, so the server runs them in the
+     * order given; each connection has its own thread there
+     *
+     * @return the server responses, one per statement
+     */
+    public List<CompletableFuture<String>> submitInOrder(List<String> sqls) {
+        PooledConnection connection = connections[Math.floorMod(nextConnection.getAndIncrement(), connections.length)];
+        List<CompletableFuture<String>> responses = new ArrayList<>(sqls.size());
+        for (String sql : sqls) {
+            responses.add(connection.submit(sql));
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a statement and waits for its response
+     *
+     * @return the server response, or "ERROR:..." if it could not be executed
+     */
+    public String execute(String sql) {
+        try {
+            return submit(sql).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return "ERROR:" + e.getCause().getMessage();
+        } catch (TimeoutException e) {
+            return "ERROR:timed out after " + TIMEOUT_MILLIS + "ms";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR:interrupted";
+        }
+    }
+
+    /**
+     * Parses the response to a SELECT, "SUCCESS|row|row..." where every row is
+     * a Python tuple such as ('alice', 'secret', None). Strings may hold the
+     * separators, the tuples are read by their quoting rather than split.
+     *
+     * @return the rows' values (None as null, numbers as written),
+     *         or null if the response is an error
+     */
+    public static List<String[]> rows(String response) {
+        if (!response.startsWith("SUCCESS|")) {
+            return null;
+        }
+        List<String[]> rows = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        int i = "SUCCESS|".length();
+        while (i < response.length()) {
+            if (response.charAt(i) != '(') {
+                return null;
+            }
+            i++;
+            values.clear();
+            while (i < response.length() && response.charAt(i) != ')') {
+                char c = response.charAt(i);
+                if (c == ' ' || c == ',') {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    value.setLength(0);
+                    i = readPythonString(response, i, value);
+                    values.add(value.toString());
+                } else {
+                    int end = i;
+                    while (end < response.length() && response.charAt(end) != ',' && response.charAt(end) != ')') {
+                        end++;
+                    }
+                    String token = response.substring(i, end);
+                    values.add(token.equals("None") ? null : token);
+                    i = end;
+                }
+            }
+            rows.add(values.toArray(new String[0]));
+            i += 2; // the ')' and the '|' before the next row
+        }
+        return rows;
+    }
+
+    // appends the string literal starting at the quote at i, returns the index after its closing quote
+    private static int readPythonString(String s, int i, StringBuilder out) {
+        char quote = s.charAt(i++);
+        while (i < s.length() && s.charAt(i) != quote) {
+            char c = s.charAt(i++);
+            if (c != '\\' || i == s.length()) {
+                out.append(c);
+                continue;
+            }
+            char escaped = s.charAt(i++);
+            switch (escaped) {
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'x': out.append((char) Integer.parseInt(s.substring(i, i + 2), 16)); i += 2; break;
+                case 'u': out.append((char) Integer.parseInt(s.substring(i, i + 4), 16)); i += 4; break;
+                case 'U': out.appendCodePoint(Integer.parseInt(s.substring(i, i + 8), 16)); i += 8; break;
+                default: out.append(escaped); // \\ \' \"
+            }
+        }
+        return i + 1;
+    }
+
+    /**
+     * @return the number of statements answered by the server
+     */
+    public long statements() {
+        return statements.sum();
+    }
+
+    /**
+     * @return the number of statements that failed because of a broken connection
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of connections opened, including reconnects
+     */
+    public long connects() {
+        return connects.sum();
+    }
+
+    /**
+     * @return the number of statements sent and not answered yet
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the average time from sending a statement to reading its response
+     */
+    public long averageRoundTripMicros() {
+        long count = statements.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(roundTripNanos.sum() / count);
+    }
+
+    private static class Pending {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final long sentAt = System.nanoTime();
+    }
+
+    private class PooledConnection {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<Pending> pending = new ArrayDeque<>(); // guarded by lock, in send order
+        private Socket socket; // guarded by lock, null until (re)connected
+        private OutputStream out;
+
+        CompletableFuture<String> submit(String sql) {
+            Pending request = new Pending();
+            lock.lock();
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                pending.add(request);
+                inFlight.incrementAndGet();
+                out.write((sql + "\0").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("[SqlConnectionPool] Error: " + e.getMessage());
+                disconnect(socket, e);
+                if (!request.result.isDone()) { // failed to connect, it was never queued
+                    failures.increment();
+                    request.result.completeExceptionally(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return request.result;
+        }
+
+        // called with the lock held
+        private void connect() throws IOException {
+            Socket opened = new Socket(host, port);
+            opened.setTcpNoDelay(true);
+            out = new BufferedOutputStream(opened.getOutputStream());
+            socket = opened;
+            connects.increment();
+
+            Thread reader = new Thread(() -> readResponses(opened), "sql-connection-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readResponses(Socket from) {
+            try {
+                InputStream in = from.getInputStream();
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] chunk = new byte[1 << 12];
+                int read;
+                while ((read = in.read(chunk)) >= 0) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (chunk[i] == '\0') {
+                            response.write(chunk, start, i - start);
+                            complete(response.toString(StandardCharsets.UTF_8));
+                            response.reset();
+                            start = i + 1;
+                        }
+                    }
+                    response.write(chunk, start, read - start);
+                }
+                disconnect(from, new IOException("connection closed by the SQL server"));
+            } catch (IOException e) {
+                disconnect(from, e);
+            }
+        }
+
+        private void complete(String response) {
+            Pending request;
+            lock.lock();
+            try {
+                request = pending.poll();
+            } finally {
+                lock.unlock();
+            }
+            if (request != null) {
+                inFlight.decrementAndGet();
+                statements.increment();
+                long roundTrip = System.nanoTime() - request.sentAt;
+                roundTripNanos.add(roundTrip);
+                ROUND_TRIP_NANOS.record(roundTrip);
+                request.result.complete(response);
+            }
+        }
+
+        // fails everything sent on the broken socket, the next submit reconnects
+        private void disconnect(Socket broken, IOException cause) {
+            lock.lock();
+            try {
+                if (broken == null || broken != socket) {
+                    return; // already replaced
+                }
+                socket = null;
+                out = null;
+                try {
+                    broken.close();
+                } catch (IOException ignored) {
+                }
+                Pending request;
+                while ((request = pending.poll()) != null) {
+                    inFlight.decrementAndGet();
+                    failures.increment();
+                    request.result.completeExceptionally(cause);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Instance {
+        static SqlConnectionPool instance = new SqlConnectionPool(SQL_HOST, SQL_PORT, POOL_SIZE);
+    }
+}
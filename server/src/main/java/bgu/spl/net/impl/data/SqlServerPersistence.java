@@ -0,0 +1,133 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The audit tables in the Python SQL server (data/sql_server.py), over the
+ * pipelined connection pool. A batch of records is written as one statement.
+ */
+public class SqlServerPersistence implements Persistence {
+
+    private final SqlConnectionPool pool;
+
+    public SqlServerPersistence(SqlConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public CompletableFuture<Void> write(List<AuditRecord> records) {
+        return pool.submit(batchSql(records)).thenAccept(SqlServerPersistence::check);
+    }
+
+    // the pool spreads statements over connections the server runs concurrently, the groups share one
+    @Override
+    public List<CompletableFuture<Void>> writeInOrder(List<List<AuditRecord>> groups) {
+        List<String> statements = new ArrayList<>(groups.size());
+        for (List<AuditRecord> group : groups) {
+            statements.add(batchSql(group));
+        }
+        List<CompletableFuture<Void>> results = new ArrayList<>(groups.size());
+        for (CompletableFuture<String> response : pool.submitInOrder(statements)) {
+            results.add(response.thenAccept(SqlServerPersistence::check));
+        }
+        return results;
+    }
+
+    private static void check(String response) {
+        if (response.startsWith("ERROR")) {
+            throw new CompletionException(new IOException(response));
+        }
+    }
+
+    @Override
+    public List<String[]> users(String after, String registeredSince, int limit) throws IOException {
+        return query("SELECT username, password FROM users WHERE username > '" + escape(after) + "'"
+                + (registeredSince == null ? "" : " AND registration_date >= '" + escape(registeredSince) + "'")
+                + " ORDER BY username LIMIT " + limit);
+    }
+
+    @Override
+    public List<String[]> registrations() throws IOException {
+        return query("SELECT username, registration_date FROM users ORDER BY registration_date");
+    }
+
+    @Override
+    public List<String[]> loginHistory() throws IOException {
+        return query("SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC");
+    }
+
+    @Override
+    public List<String[]> fileUploads() throws IOException {
+        return query("SELECT username, filename, upload_time, game_channel FROM file_tracking "
+                + "ORDER BY username, upload_time DESC");
+    }
+
+    private List<String[]> query(String sql) throws IOException {
+        String response = pool.execute(sql);
+        List<String[]> rows = SqlConnectionPool.rows(response);
+        if (rows == null) {
+            throw new IOException(response);
+        }
+        return rows;
+    }
+
+    /**
+     * Builds a single statement writing all the given records, which must be of one kind.
+     * Registrations ignore users that already exist, so one duplicate does not fail the rest.
+     * Logouts may not hold the same user twice.
+     */
+    static String batchSql(List<AuditRecord> records) {
+        StringBuilder sql = new StringBuilder();
+        switch (records.get(0).kind) {
+            case REGISTER:
+                sql.append("INSERT OR IGNORE INTO users (username, password, registration_date) VALUES ");
+                for (int i = 0; i < records.size(); i++) {
+                    AuditRecord record = records.get(i);
+                    sql.append(i > 0 ? ", " : "").append("('").append(escape(record.username)).append("', '")
+                            .append(escape(record.password)).append("', '").append(record.timestamp).append("')");
+                }
+                break;
+            case LOGIN:
+                sql.append("INSERT INTO login_history (username, login_time) VALUES ");
+                for (int i = 0; i < records.size(); i++) {
+                    AuditRecord record = records.get(i);
+                    sql.append(i > 0 ? ", " : "").append("('").append(escape(record.username)).append("', '")
+                            .append(record.timestamp).append("')");
+                }
+                break;
+            case LOGOUT:
+                // every user gets its own logout time
+                sql.append("UPDATE login_history SET logout_time = CASE username");
+                for (AuditRecord record : records) {
+                    sql.append(" WHEN '").append(escape(record.username)).append("' THEN '")
+                            .append(record.timestamp).append("'");
+                }
+                sql.append(" END WHERE logout_time IS NULL AND username IN (");
+                for (int i = 0; i < records.size(); i++) {
+                    sql.append(i > 0 ? ", " : "").append("'").append(escape(records.get(i).username)).append("'");
+                }
+                sql.append(")");
+                break;
+            case FILE_UPLOAD:
+                sql.append("INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES ");
+                for (int i = 0; i < records.size(); i++) {
+                    AuditRecord record = records.get(i);
+                    sql.append(i > 0 ? ", " : "").append("('").append(escape(record.username)).append("', '")
+                            .append(escape(record.filename)).append("', '").append(record.timestamp).append("', '")
+                            .append(escape(record.gameChannel)).append("')");
+                }
+                break;
+        }
+        return sql.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null)
+            return "";
+        return value.replace("'", "''");
+    }
+}
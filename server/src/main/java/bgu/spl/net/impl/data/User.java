@@ -1,36 +1,49 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registered user and the connection it is logged in on. Logging in and
+ * out are compare-and-set transitions of that connection, so two logins of
+ * the same user cannot both succeed and neither needs a lock.
+ */
 public class User {
+	public static final int LOGGED_OUT = -1;
+
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	private final AtomicInteger connectionId;
 
+	/**
+	 * @param connectionId the connection it is logged in on, or LOGGED_OUT
+	 */
 	public User(int connectionId, String name, String password) {
-		this.connectionId = connectionId;
+		this.connectionId = new AtomicInteger(connectionId);
 		this.name = name;
 		this.password = password;
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return connectionId.get() != LOGGED_OUT;
 	}
 
-	public void login() {
-		isLoggedIn = true;
+	/**
+	 * @return false if the user is logged in on another connection
+	 */
+	public boolean login(int connectionId) {
+		return this.connectionId.compareAndSet(LOGGED_OUT, connectionId);
 	}
 
-	public void logout() {
-		isLoggedIn = false;
+	/**
+	 * Logs out, only if the user is logged in on the given connection
+	 *
+	 * @return false if it was not
+	 */
+	public boolean logout(int connectionId) {
+		return this.connectionId.compareAndSet(connectionId, LOGGED_OUT);
 	}
 
 	public int getConnectionId() {
-		return connectionId;
-	}
-
-	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
+		return connectionId.get();
 	}
-
-
 }
@@ -0,0 +1,391 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.ConcurrentIntObjectMap;
+import bgu.spl.net.srv.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The registered users and the connections they are logged in on, for the
+ * whole server. Users are split over SHARDS maps by name; each shard is
+ * written to its own snapshot file under stomp.users.snapshotDir, every
+ * stomp.users.snapshotMillis and on shutdown, and only when it changed.
+ * At boot the shard files are loaded in parallel, then the users registered
+ * in the database (the Persistence) after the snapshot was taken are added.
+ * Without a snapshot every user is loaded from the users table, a page at a
+ * time.
+ */
+public class UserStore {
+
+    private static final int SHARDS = 16;
+    private static final int PAGE = 10_000;
+    private static final int MAGIC = 0x53545553; // "STUS"
+    private static final String MANIFEST = "users.manifest";
+    private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // directory of the snapshot, unset - users are only loaded from the database
+    private static final String SNAPSHOT_DIR = System.getProperty("stomp.users.snapshotDir", "");
+    private static final long SNAPSHOT_MILLIS = Long.getLong("stomp.users.snapshotMillis", 60_000);
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final ConcurrentIntObjectMap<User> sessions = new ConcurrentIntObjectMap<>();
+
+    private static class Shard {
+        final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        final AtomicLong changes = new AtomicLong(); // users added
+        long written = 0; // changes when the shard was last written, guarded by the store
+    }
+
+    private UserStore() {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    public static UserStore getInstance() {
+        return Instance.instance;
+    }
+
+    /**
+     * Registers a new user, logged in on the connection registering it so no
+     * other login of it comes before its registration is recorded
+     *
+     * @return null if the user is new, otherwise the registered user (unchanged)
+     */
+    public User register(String name, String password, int connectionId) {
+        User user = new User(connectionId, name, password);
+        User existing = add(user);
+        if (existing == null) {
+            sessions.put(connectionId, user);
+        }
+        return existing;
+    }
+
+    /**
+     * Adds a user unless one of its name exists, e.g. one loaded from the database
+     *
+     * @return the existing user, or null if it was added
+     */
+    public User add(User user) {
+        Shard shard = shardOf(user.name);
+        User existing = shard.users.putIfAbsent(user.name, user);
+        if (existing == null) {
+            shard.changes.incrementAndGet();
+            if (user.isLoggedIn()) {
+                sessions.putIfAbsent(user.getConnectionId(), user);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @return the registered user of the name, or null
+     */
+    public User get(String name) {
+        return shardOf(name).users.get(name);
+    }
+
+    /**
+     * Logs a registered user in on the connection
+     *
+     * @return false if it is logged in on another connection
+     */
+    public boolean login(User user, int connectionId) {
+        if (!user.login(connectionId)) {
+            return false;
+        }
+        sessions.put(connectionId, user);
+        return true;
+    }
+
+    /**
+     * Logs out the user logged in on the connection
+     *
+     * @return that user, or null if none was
+     */
+    public User logout(int connectionId) {
+        User user = sessions.remove(connectionId);
+        if (user != null) {
+            user.logout(connectionId);
+        }
+        return user;
+    }
+
+    /**
+     * @return the user logged in on the connection, or null
+     */
+    public User session(int connectionId) {
+        return sessions.get(connectionId);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.users.size();
+        }
+        return size;
+    }
+
+    private Shard shardOf(String name) {
+        return shards[(name.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    // loads the users of the previous runs and starts taking snapshots
+    private void start() {
+        long start = System.nanoTime();
+        Path dir = SNAPSHOT_DIR.isEmpty() ? null : Paths.get(SNAPSHOT_DIR);
+        long takenAt = dir == null ? -1 : loadSnapshot(dir);
+        int fromSnapshot = size();
+        for (Shard shard : shards) {
+            shard.written = shard.changes.get(); // the loaded users are already in the snapshot
+        }
+        // a second of slack, registration times are whole seconds
+        String since = takenAt < 0 ? null
+                : LocalDateTime.ofInstant(Instant.ofEpochMilli(takenAt - 1000), ZoneId.systemDefault()).format(SQL_TIME);
+        int fromDatabase = loadFromDatabase(since);
+        System.out.println("Users: loaded " + fromSnapshot + " from the snapshot and " + fromDatabase
+                + " from the database in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        Metrics.gauge("users.registered", this::size);
+        Metrics.gauge("users.loggedIn", sessions::size);
+        if (dir == null) {
+            return;
+        }
+        Thread snapshots = new Thread(() -> snapshotPeriodically(dir), "user-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> snapshot(dir), "user-snapshot-final"));
+    }
+
+    private void snapshotPeriodically(Path dir) {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(SNAPSHOT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            snapshot(dir);
+        }
+    }
+
+    /**
+     * Writes the shards that changed since they were last written, then the
+     * manifest holding when this snapshot was started
+     */
+    synchronized void snapshot(Path dir) {
+        long takenAt = System.currentTimeMillis();
+        boolean wrote = false;
+        try {
+            Files.createDirectories(dir);
+            for (int i = 0; i < SHARDS; i++) {
+                Shard shard = shards[i];
+                long changes = shard.changes.get();
+                if (changes == shard.written) {
+                    continue;
+                }
+                writeShard(shard, dir.resolve(shardFile(i)));
+                shard.written = changes;
+                wrote = true;
+            }
+            if (wrote) {
+                writeAtomically(dir.resolve(MANIFEST), out -> {
+                    out.writeInt(SHARDS);
+                    out.writeLong(takenAt);
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String shardFile(int shard) {
+        return String.format("users-%02d.bin", shard);
+    }
+
+    // [name length][name][password length][password] per user, UTF-8, a -1 length after the last
+    private static void writeShard(Shard shard, Path file) throws IOException {
+        writeAtomically(file, out -> {
+            for (User user : shard.users.values()) {
+                writeString(out, user.name);
+                writeString(out, user.password);
+            }
+            out.writeInt(-1);
+        });
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // MAGIC, the body, the CRC32C of both; through a temporary file so a crash leaves the previous version
+    private static void writeAtomically(Path file, Body body) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream, 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            body.write(out);
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            stream.getChannel().force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Loads the shard files in parallel
+     *
+     * @return when the snapshot was taken, or -1 if there is none or it is
+     *         damaged (then nothing is loaded)
+     */
+    private long loadSnapshot(Path dir) {
+        Path manifest = dir.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return -1;
+        }
+        int files;
+        long takenAt;
+        try (CheckedData in = CheckedData.open(manifest)) {
+            files = in.readInt();
+            takenAt = in.readLong();
+            in.verify();
+        } catch (IOException e) {
+            System.err.println("Users: ignoring the snapshot, cannot read " + manifest + ": " + e);
+            return -1;
+        }
+
+        AtomicBoolean damaged = new AtomicBoolean(false);
+        IntStream.range(0, files).parallel().forEach(i -> {
+            Path file = dir.resolve(shardFile(i));
+            if (!Files.exists(file)) {
+                return; // an empty shard
+            }
+            try (CheckedData in = CheckedData.open(file)) {
+                for (String name = in.readString(); name != null; name = in.readString()) {
+                    add(new User(User.LOGGED_OUT, name, in.readString()));
+                }
+                in.verify();
+            } catch (IOException e) {
+                System.err.println("Users: ignoring the snapshot, cannot read " + file + ": " + e);
+                damaged.set(true);
+            }
+        });
+        if (damaged.get()) {
+            for (Shard shard : shards) {
+                shard.users.clear();
+            }
+            return -1;
+        }
+        return takenAt;
+    }
+
+    // a snapshot file: MAGIC, then the body read through this stream, then its CRC32C
+    private static class CheckedData extends DataInputStream {
+        private final CheckedInputStream checked;
+
+        private CheckedData(CheckedInputStream checked) {
+            super(checked);
+            this.checked = checked;
+        }
+
+        static CheckedData open(Path file) throws IOException {
+            InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+            CheckedData in = new CheckedData(new CheckedInputStream(stream, new CRC32C()));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("not a user snapshot");
+            }
+            return in;
+        }
+
+        // the next string, null at the end of the users
+        String readString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void verify() throws IOException {
+            int expected = (int) checked.getChecksum().getValue();
+            try {
+                if (readInt() != expected) {
+                    throw new IOException("checksum mismatch");
+                }
+            } catch (EOFException e) {
+                throw new IOException("truncated", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the users of the users table, by pages in name order
+     *
+     * @param since only users registered since then, null - all of them
+     * @return the number of users added
+     */
+    private int loadFromDatabase(String since) {
+        int added = 0;
+        String last = "";
+        while (true) {
+            List<String[]> rows;
+            try {
+                rows = Persistence.getInstance().users(last, since, PAGE);
+            } catch (IOException e) {
+                System.err.println("Users: cannot load the users from the database: " + e.getMessage());
+                return added;
+            }
+            for (String[] row : rows) {
+                if (add(new User(User.LOGGED_OUT, row[0], row[1] == null ? "" : row[1])) == null) {
+                    added++;
+                }
+            }
+            if (rows.size() < PAGE) {
+                return added;
+            }
+            last = rows.get(rows.size() - 1)[0];
+        }
+    }
+
+    private static class Instance {
+        static UserStore instance = new UserStore();
+
+        static {
+            instance.start();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,6 +25,27 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public List<String> decode(ByteBuffer buffer) {
+        int scanFrom = len;
+        pushBytes(buffer);
+
+        List<String> messages = null;
+        int start = 0;
+        for (int i = scanFrom; i < len; i++) {
+            if (bytes[i] == '\n') {
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                }
+                messages.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+
+        dropBytes(start);
+        return messages != null ? messages : Collections.emptyList();
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
@@ -34,6 +59,24 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         bytes[len++] = nextByte;
     }
 
+    private void pushBytes(ByteBuffer buffer) {
+        int count = buffer.remaining();
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len * 2, len + count));
+        }
+
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    //removes the first count bytes (the completed lines), keeping the partial one
+    private void dropBytes(int count) {
+        if (count > 0) {
+            System.arraycopy(bytes, count, bytes, 0, len - count);
+            len -= count;
+        }
+    }
+
     private String popString() {
         //notice that we explicitly requesting that the string will be decoded from UTF-8
         //this is not actually required as it is the default encoding in java.
@@ -0,0 +1,213 @@
+package bgu.spl.net.impl.loadtest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One simulated client: it logs in, joins its game channels and then reports
+ * events to them at a fixed rate while reading every MESSAGE sent to it.
+ * Each report carries the time it was due in its general game updates, so a
+ * late send still counts its delay in the latency.
+ */
+class LoadClient {
+
+    // the general game update carrying the due time of a report
+    private static final String SENT_AT = "load test sent: ";
+
+    private final int index;
+    private final List<String> channels;
+    private final LoadStats stats;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock(); // a lock so virtual threads do not pin
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private final byte[] buffer = new byte[1 << 13]; // bytes read and not framed yet are [position, limit)
+    private int position;
+    private int limit;
+    private volatile boolean running = true;
+
+    LoadClient(int index, List<String> channels, LoadStats stats) {
+        this.index = index;
+        this.channels = channels;
+        this.stats = stats;
+    }
+
+    /**
+     * Connects, logs in and subscribes, waiting for every receipt
+     */
+    void connect(String host, int port) throws IOException {
+        long start = System.nanoTime();
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream());
+
+        write("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:loadtest-" + index
+                + "\npasscode:loadtest\n\n");
+        expect("CONNECTED");
+        for (int i = 0; i < channels.size(); i++) {
+            write("SUBSCRIBE\ndestination:/" + channels.get(i) + "\nid:" + i + "\nreceipt:" + i + "\n\n");
+            expect("RECEIPT");
+        }
+        stats.setupNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Reads until the connection closes, timing every MESSAGE carrying a due time
+     */
+    void readMessages() {
+        try {
+            String next;
+            while ((next = readFrame()) != null) {
+                if (next.startsWith("MESSAGE")) {
+                    int at = next.indexOf(SENT_AT);
+                    if (at >= 0) {
+                        int end = next.indexOf('\n', at);
+                        stats.delivered(Long.parseLong(next.substring(at + SENT_AT.length(), end)));
+                    }
+                } else if (next.startsWith("ERROR")) {
+                    error(next);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                stats.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Reports an event every period until stopped, to the client's channels in turn
+     *
+     * @param start when the first report is due
+     */
+    void publish(long start, long periodNanos) {
+        long due = start + ThreadLocalRandom.current().nextLong(periodNanos); // spread the clients
+        long count = 0;
+        while (running) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            try {
+                write(report(channels.get((int) (count % channels.size())), count++, due));
+                stats.published.increment();
+            } catch (IOException e) {
+                if (running) {
+                    stats.errors.increment();
+                }
+                return;
+            }
+            due += periodNanos; // when behind, the next reports go out at once
+        }
+    }
+
+    /**
+     * Stops publishing and logs out
+     */
+    void disconnect() {
+        running = false;
+        try {
+            write("DISCONNECT\nreceipt:bye\n\n");
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    void close() {
+        running = false;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // a SEND shaped like the client's report of an events1.json event
+    private String report(String channel, long count, long due) {
+        return "SEND\ndestination:/" + channel + "\n\n"
+                + "user: loadtest-" + index + "\n"
+                + "source file: events1.json\n"
+                + "team a: Germany\n"
+                + "team b: Japan\n"
+                + "event name: goal!!!!\n"
+                + "time: " + count + "\n"
+                + "general game updates:\n"
+                + "    " + SENT_AT + due + "\n"
+                + "team a updates:\n"
+                + "    goals: 1\n"
+                + "    possession: 90%\n"
+                + "team b updates:\n"
+                + "    possession: 10%\n"
+                + "description:\n"
+                + "GOOOAAALLL!!! Germany lead!!! Gundogan finally has success in the box as he steps up to take"
+                + " the penalty, sends Gonda the wrong way, and slots the ball into the bottom left corner.";
+    }
+
+    private void write(String text) throws IOException {
+        byte[] bytes = (text + "\0").getBytes(StandardCharsets.UTF_8);
+        writeLock.lock();
+        try {
+            out.write(bytes);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // reads frames until one of the given command, skipping messages
+    private void expect(String command) throws IOException {
+        String next;
+        while ((next = readFrame()) != null) {
+            if (next.startsWith(command)) {
+                return;
+            }
+            if (next.startsWith("ERROR")) {
+                error(next);
+                throw new IOException("loadtest-" + index + " got an ERROR frame instead of " + command);
+            }
+        }
+        throw new IOException("loadtest-" + index + " was disconnected waiting for " + command);
+    }
+
+    // the next frame without its terminator, null at the end of the stream
+    private String readFrame() throws IOException {
+        frame.reset();
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\0') {
+                    frame.write(buffer, position, i - position);
+                    position = i + 1;
+                    return frame.toString(StandardCharsets.UTF_8);
+                }
+            }
+            frame.write(buffer, position, limit - position);
+            position = 0;
+            limit = in.read(buffer);
+            if (limit < 0) {
+                limit = 0;
+                return null;
+            }
+        }
+    }
+
+    private void error(String frame) {
+        // only the first few, thousands of clients may fail the same way
+        if (stats.errors.sum() < 5) {
+            System.err.println("loadtest-" + index + ": " + frame.replace('\n', ' '));
+        }
+        stats.errors.increment();
+    }
+}
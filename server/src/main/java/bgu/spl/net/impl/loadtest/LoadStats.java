@@ -0,0 +1,37 @@
+package bgu.spl.net.impl.loadtest;
+
+import bgu.spl.net.srv.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the simulated clients measured. Latencies are only recorded once the
+ * warmup is over.
+ */
+class LoadStats {
+
+    final LongAdder published = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final Histogram latencyNanos = new Histogram();
+    final Histogram setupNanos = new Histogram();
+    volatile boolean measuring = false;
+
+    void delivered(long sentAt) {
+        delivered.increment();
+        if (measuring) {
+            latencyNanos.record(System.nanoTime() - sentAt);
+        }
+    }
+
+    static String micros(Histogram.Sample sample) {
+        return String.format("p50 %s  p99 %s  p999 %s  max %s (us)",
+                toMicros(sample.percentile(50)), toMicros(sample.percentile(99)),
+                toMicros(sample.percentile(99.9)), toMicros(sample.max()));
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
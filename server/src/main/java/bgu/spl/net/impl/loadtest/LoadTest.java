@@ -0,0 +1,155 @@
+package bgu.spl.net.impl.loadtest;
+
+import bgu.spl.net.impl.stomp.StompServer;
+import bgu.spl.net.srv.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates many STOMP clients against a local server: every client logs in,
+ * joins some of the game channels and reports events to them at a fixed rate.
+ * Prints the throughput every second, then the publish to delivery latency
+ * and the connection setup time.
+ *
+ * Arguments are name=value pairs, all optional:
+ *   host=127.0.0.1 port=7777     the server
+ *   server=none                  or tpc, tpc-virtual, reactor, multi-reactor to start one in this JVM
+ *   clients=1000                 simulated clients, one virtual thread reading and one writing each
+ *   channels=10                  game channels, worldcup/game-0 ...
+ *   subscriptions=2              channels each client joins and reports to
+ *   rate=1                       reports per second of each client
+ *   seconds=30 warmup=5          measured time, and time before measuring
+ *   connectParallelism=64        clients connecting at once
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Usage: LoadTest [name=value ...], see the class comment for the names");
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(options.getOrDefault("port", "7777"));
+        String server = options.getOrDefault("server", "none");
+        int clients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int channels = Integer.parseInt(options.getOrDefault("channels", "10"));
+        int subscriptions = Math.min(channels, Integer.parseInt(options.getOrDefault("subscriptions", "2")));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int connectParallelism = Integer.parseInt(options.getOrDefault("connectParallelism", "64"));
+
+        if (!server.equals("none")) {
+            Thread serverThread = new Thread(() -> StompServer.main(new String[] { String.valueOf(port), server }),
+                    "loadtest-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            TimeUnit.SECONDS.sleep(1); // let it bind
+        }
+
+        LoadStats stats = new LoadStats();
+        List<LoadClient> simulated = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            List<String> joined = new ArrayList<>(subscriptions);
+            for (int s = 0; s < subscriptions; s++) {
+                joined.add("worldcup/game-" + (i + s) % channels);
+            }
+            simulated.add(new LoadClient(i, joined, stats));
+        }
+
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+
+        // connect everyone before the first report, a few at a time
+        System.out.println("Connecting " + clients + " clients to " + host + ":" + port
+                + (server.equals("none") ? "" : " (" + server + " server)"));
+        long connectStart = System.nanoTime();
+        Semaphore connecting = new Semaphore(connectParallelism);
+        List<LoadClient> connected = new ArrayList<>(clients);
+        List<Future<Boolean>> attempts = new ArrayList<>(clients);
+        for (LoadClient client : simulated) {
+            attempts.add(threads.submit(() -> {
+                connecting.acquire();
+                try {
+                    client.connect(host, port);
+                    return true;
+                } catch (Exception e) {
+                    stats.errors.increment();
+                    client.close();
+                    return false;
+                } finally {
+                    connecting.release();
+                }
+            }));
+        }
+        for (int i = 0; i < clients; i++) {
+            if (attempts.get(i).get()) {
+                connected.add(simulated.get(i));
+            }
+        }
+        Histogram.Sample setup = stats.setupNanos.sample();
+        System.out.printf("%d of %d clients connected in %.2fs, setup %s%n", connected.size(), clients,
+                (System.nanoTime() - connectStart) / 1e9, LoadStats.micros(setup));
+        if (connected.isEmpty()) {
+            threads.shutdownNow();
+            return;
+        }
+
+        // without a warmup the measurement starts with the first report, the counts from 0
+        stats.measuring = warmup == 0;
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        for (LoadClient client : connected) {
+            threads.execute(client::readMessages);
+            threads.execute(() -> client.publish(start, periodNanos));
+        }
+
+        long lastPublished = 0;
+        long lastDelivered = 0;
+        long measuredPublished = 0;
+        long measuredDelivered = 0;
+        for (int second = 1; second <= warmup + seconds; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            if (second == warmup) {
+                stats.measuring = true;
+                measuredPublished = stats.published.sum();
+                measuredDelivered = stats.delivered.sum();
+            }
+            long published = stats.published.sum();
+            long delivered = stats.delivered.sum();
+            System.out.printf("%4ds %spublished %d/s, delivered %d/s, errors %d%n", second,
+                    second <= warmup ? "warmup " : "", published - lastPublished, delivered - lastDelivered,
+                    stats.errors.sum());
+            lastPublished = published;
+            lastDelivered = delivered;
+        }
+        stats.measuring = false;
+        Histogram.Sample latency = stats.latencyNanos.sample();
+
+        for (LoadClient client : connected) {
+            client.disconnect();
+        }
+        threads.shutdownNow();
+
+        System.out.printf("Over %ds with %d clients, %d channels, %d subscriptions each, %.1f reports/s each:%n",
+                seconds, connected.size(), channels, subscriptions, rate);
+        System.out.printf("  throughput: published %.1f/s, delivered %.1f/s, errors %d%n",
+                (lastPublished - measuredPublished) / (double) seconds,
+                (lastDelivered - measuredDelivered) / (double) seconds, stats.errors.sum());
+        System.out.println("  latency:    " + LoadStats.micros(latency));
+        System.out.println("  setup:      " + LoadStats.micros(setup));
+        System.exit(0); // an embedded server's threads would keep the JVM up
+    }
+}
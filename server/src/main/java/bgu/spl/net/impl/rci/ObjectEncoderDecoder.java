@@ -9,6 +9,9 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
@@ -38,6 +41,38 @@ public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable>
         return null;
     }
 
+    @Override
+    public List<Serializable> decode(ByteBuffer buffer) {
+        List<Serializable> messages = null;
+        while (buffer.hasRemaining()) {
+            if (objectBytes == null) { //still reading the length, at most 4 bytes
+                while (buffer.hasRemaining() && lengthBuffer.hasRemaining()) {
+                    lengthBuffer.put(buffer.get());
+                }
+                if (!lengthBuffer.hasRemaining()) {
+                    lengthBuffer.flip();
+                    objectBytes = new byte[lengthBuffer.getInt()];
+                    objectBytesIndex = 0;
+                    lengthBuffer.clear();
+                }
+            } else { //copy as much of the object as this buffer holds
+                int count = Math.min(buffer.remaining(), objectBytes.length - objectBytesIndex);
+                buffer.get(objectBytes, objectBytesIndex, count);
+                objectBytesIndex += count;
+            }
+
+            if (objectBytes != null && objectBytesIndex == objectBytes.length) {
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                }
+                messages.add(deserializeObject());
+                objectBytes = null;
+            }
+        }
+
+        return messages != null ? messages : Collections.emptyList();
+    }
+
     @Override
     public byte[] encode(Serializable message) {
         return serializeObject(message);
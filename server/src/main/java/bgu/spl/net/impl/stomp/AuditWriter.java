@@ -0,0 +1,241 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.AuditRecord;
+import bgu.spl.net.impl.data.Persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write behind queue for the audit tables (users, login_history, file_tracking).
+ * Protocol threads only enqueue records, a background thread drains them in
+ * batches of up to BATCH_SIZE records, waiting up to LINGER_MILLIS for a batch
+ * to fill. Consecutive records of the same kind are written to the Persistence
+ * together (one multi row statement for the SQL server), and the writes of a
+ * batch are pipelined in order, over one connection to the SQL server.
+ */
+public class AuditWriter {
+
+    /**
+     * What submit does when the queue is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, // wait for room, keeps the order of the records
+        DROP, // discard the new record and count it
+        CALLER_RUNS // write the record on the calling thread, may overtake queued records
+    }
+
+    private static final int CAPACITY = Integer.getInteger("stomp.audit.capacity", 65536);
+    private static final int BATCH_SIZE = Integer.getInteger("stomp.audit.batchSize", 256);
+    private static final long LINGER_MILLIS = Long.getLong("stomp.audit.lingerMillis", 5);
+    private static final OverflowPolicy OVERFLOW = OverflowPolicy.valueOf(
+            System.getProperty("stomp.audit.overflow", OverflowPolicy.BLOCK.name()));
+
+    private final BlockingQueue<AuditRecord> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+
+    public AuditWriter(int capacity, int batchSize, long lingerMillis, OverflowPolicy overflowPolicy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.overflowPolicy = overflowPolicy;
+        this.writer = new Thread(this::drain, "audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static AuditWriter getInstance() {
+        return Instance.instance;
+    }
+
+    public void submit(AuditRecord record) {
+        submitted.increment();
+        if (closed) { // the writer is gone, write it here
+            write(List.of(record));
+            return;
+        }
+        if (queue.offer(record)) {
+            writeIfClosed(record);
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(record);
+                    writeIfClosed(record);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+                break;
+            case DROP:
+                dropped.increment();
+                break;
+            case CALLER_RUNS:
+                write(List.of(record));
+                break;
+        }
+    }
+
+    // a record queued while closing is either in the writer's final drain or still queued, then written here
+    private void writeIfClosed(AuditRecord record) {
+        if (closed && queue.remove(record)) {
+            write(List.of(record));
+        }
+    }
+
+    /**
+     * Stops taking records in the background and writes everything still queued
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long submitted() {
+        return submitted.sum();
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public long statements() {
+        return statements.sum();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    private void drain() {
+        List<AuditRecord> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                AuditRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // linger a little so a burst of records leaves as one batch
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    AuditRecord next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+            write(batch);
+            batch.clear();
+        }
+
+        // flush on shutdown
+        queue.drainTo(batch);
+        for (int from = 0; from < batch.size(); from += batchSize) {
+            write(batch.subList(from, Math.min(batch.size(), from + batchSize)));
+        }
+    }
+
+    private void write(List<AuditRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<List<AuditRecord>> groups = new ArrayList<>();
+        int from = 0;
+        while (from < batch.size()) {
+            int to = endOfGroup(batch, from);
+            groups.add(batch.subList(from, to));
+            from = to;
+        }
+
+        // in order, a user's login and logout can be in the same batch
+        List<CompletableFuture<Void>> responses = Persistence.getInstance().writeInOrder(groups);
+        for (int i = 0; i < responses.size(); i++) {
+            String error = null;
+            try {
+                responses.get(i).get();
+            } catch (ExecutionException e) {
+                error = e.getCause().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "interrupted";
+            }
+            statements.increment();
+            if (error != null) {
+                System.err.println("[AuditWriter] Error: " + error);
+                failed.add(groups.get(i).size());
+            } else {
+                written.add(groups.get(i).size());
+            }
+        }
+    }
+
+    // records [from, end) are of one kind, a logout run never holds a user twice
+    private static int endOfGroup(List<AuditRecord> batch, int from) {
+        AuditRecord.Kind kind = batch.get(from).kind;
+        int end = from + 1;
+        while (end < batch.size() && batch.get(end).kind == kind) {
+            if (kind == AuditRecord.Kind.LOGOUT && hasUser(batch, from, end, batch.get(end).username)) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean hasUser(List<AuditRecord> batch, int from, int to, String username) {
+        for (int i = from; i < to; i++) {
+            if (batch.get(i).username.equals(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Instance {
+        static AuditWriter instance = create();
+
+        private static AuditWriter create() {
+            AuditWriter writer = new AuditWriter(CAPACITY, BATCH_SIZE, LINGER_MILLIS, OVERFLOW);
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "audit-writer-flush"));
+            return writer;
+        }
+    }
+}
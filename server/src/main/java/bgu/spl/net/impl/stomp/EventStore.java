@@ -0,0 +1,293 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Every reported game event, queryable by channel, user, event name and game
+ * time. The events are kept by column: each one is a row number into arrays
+ * of channel, user and event name ids (the strings are stored once) and of
+ * game times and message ids. Each channel, user and event name has the rows
+ * it appears in, in row order, and the game times have a sorted index.
+ *
+ * Protocol threads only queue the events, the "event-indexer" thread adds
+ * them, so sending a report never waits for the indexes. Queries read under
+ * a read lock, the indexer takes the write lock once per batch.
+ */
+class EventStore {
+
+    // events kept, the ones reported after that are dropped
+    private static final int CAPACITY = Integer.getInteger("stomp.events.capacity", 1_000_000);
+    private static final int QUEUE_CAPACITY = 65536;
+    static final int MAX_PAGE = 1000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final BlockingQueue<Reported> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+
+    // the columns, rows [0, size)
+    private int size;
+    private int[] channels = new int[1024];
+    private int[] users = new int[1024];
+    private int[] names = new int[1024];
+    private int[] times = new int[1024];
+    private int[] messageIds = new int[1024];
+
+    private final Dictionary channelIds = new Dictionary();
+    private final Dictionary userIds = new Dictionary();
+    private final Dictionary nameIds = new Dictionary();
+    private final List<Rows> byChannel = new ArrayList<>();
+    private final List<Rows> byUser = new ArrayList<>();
+    private final List<Rows> byName = new ArrayList<>();
+    private final NavigableMap<Integer, Rows> byTime = new TreeMap<>();
+
+    private record Reported(String channel, String user, GameEvent event, int messageId) {
+    }
+
+    private EventStore() {
+        Metrics.gauge("events.stored", this::size);
+        Metrics.gauge("events.queued", queue::size);
+        Metrics.gauge("events.dropped", dropped::sum);
+        Thread indexer = new Thread(this::index, "event-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    static EventStore getInstance() {
+        return Instance.instance;
+    }
+
+    /**
+     * Queues a reported event for indexing, dropping it if the indexer is that far behind
+     */
+    void submit(String channel, String user, GameEvent event, int messageId) {
+        if (!queue.offer(new Reported(channel, user, event, messageId))) {
+            dropped.increment();
+        }
+    }
+
+    private void index() {
+        List<Reported> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, 1023);
+            lock.writeLock().lock();
+            try {
+                for (Reported reported : batch) {
+                    add(reported);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    private void add(Reported reported) {
+        if (size == CAPACITY) {
+            dropped.increment();
+            return;
+        }
+        if (size == times.length) {
+            int length = Math.min(CAPACITY, size * 2);
+            channels = Arrays.copyOf(channels, length);
+            users = Arrays.copyOf(users, length);
+            names = Arrays.copyOf(names, length);
+            times = Arrays.copyOf(times, length);
+            messageIds = Arrays.copyOf(messageIds, length);
+        }
+        int row = size;
+        channels[row] = channelIds.id(reported.channel, byChannel);
+        users[row] = userIds.id(reported.user, byUser);
+        names[row] = nameIds.id(reported.event.name, byName);
+        times[row] = reported.event.time;
+        messageIds[row] = reported.messageId;
+        byChannel.get(channels[row]).add(row);
+        byUser.get(users[row]).add(row);
+        byName.get(names[row]).add(row);
+        byTime.computeIfAbsent(times[row], t -> new Rows()).add(row);
+        size = row + 1;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * What to look for; null fields match every event
+     */
+    static class Query {
+        String channel;
+        String user;
+        String name;
+        Integer fromTime; // game time, inclusive
+        Integer toTime;
+        int after = -1; // the cursor of the previous page
+        int limit = 100;
+    }
+
+    /**
+     * @param text one "event: row" ... block per event, an empty line after each
+     * @param next the cursor of the next page, -1 if this is the last one
+     */
+    record Page(String text, int events, int next) {
+    }
+
+    /**
+     * @return the events matching every field of the query, in the order they
+     *         were reported, after the query's cursor
+     */
+    Page query(Query query) {
+        lock.readLock().lock();
+        try {
+            // the strings' ids, -1 for any, and no event has a string never reported
+            int channel = query.channel == null ? -1 : channelIds.find(query.channel);
+            int user = query.user == null ? -1 : userIds.find(query.user);
+            int name = query.name == null ? -1 : nameIds.find(query.name);
+            if ((query.channel != null && channel < 0) || (query.user != null && user < 0)
+                    || (query.name != null && name < 0)) {
+                return new Page("", 0, -1);
+            }
+            int from = query.fromTime == null ? Integer.MIN_VALUE : query.fromTime;
+            int to = query.toTime == null ? Integer.MAX_VALUE : query.toTime;
+            if (from > to) {
+                return new Page("", 0, -1);
+            }
+
+            Rows candidates = candidates(channel, user, name, query);
+            StringBuilder text = new StringBuilder();
+            int found = 0;
+            int last = -1;
+            int next = -1;
+            // candidates are sorted, the page starts after the cursor
+            int count = candidates == null ? size : candidates.size;
+            int start = Math.max(0, query.after + 1);
+            if (candidates != null) {
+                start = Arrays.binarySearch(candidates.rows, 0, candidates.size, start);
+                start = start < 0 ? -start - 1 : start; // the first row after the cursor
+            }
+            for (int i = start; i < count; i++) {
+                int row = candidates == null ? i : candidates.rows[i];
+                if ((channel >= 0 && channels[row] != channel) || (user >= 0 && users[row] != user)
+                        || (name >= 0 && names[row] != name) || times[row] < from || times[row] > to) {
+                    continue;
+                }
+                if (found == query.limit) {
+                    next = last;
+                    break;
+                }
+                found++;
+                last = row;
+                text.append("event: ").append(row).append('\n')
+                        .append("message-id: ").append(messageIds[row]).append('\n')
+                        .append("channel: ").append(channelIds.name(channels[row])).append('\n')
+                        .append("user: ").append(userIds.name(users[row])).append('\n')
+                        .append("event name: ").append(nameIds.name(names[row])).append('\n')
+                        .append("time: ").append(times[row]).append("\n\n");
+            }
+            return new Page(text.toString(), found, next);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the rows of the most selective index the query uses, null - every row
+    private Rows candidates(int channel, int user, int name, Query query) {
+        Rows best = null;
+        if (channel >= 0) {
+            best = byChannel.get(channel);
+        }
+        if (user >= 0 && (best == null || byUser.get(user).size < best.size)) {
+            best = byUser.get(user);
+        }
+        if (name >= 0 && (best == null || byName.get(name).size < best.size)) {
+            best = byName.get(name);
+        }
+        if (best != null) {
+            return best;
+        }
+        if (query.fromTime == null && query.toTime == null) {
+            return null;
+        }
+        // the rows of every time in the range, back in row order
+        Rows range = new Rows();
+        for (Rows time : byTime.subMap(query.fromTime == null ? Integer.MIN_VALUE : query.fromTime, true,
+                query.toTime == null ? Integer.MAX_VALUE : query.toTime, true).values()) {
+            range.addAll(time);
+        }
+        Arrays.sort(range.rows, 0, range.size);
+        return range;
+    }
+
+    // ids of the distinct strings of a column
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        // the string's id, a new one with its empty index if it is new
+        int id(String name, List<Rows> index) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+                index.add(new Rows());
+            }
+            return id;
+        }
+
+        int find(String name) {
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+
+        String name(int id) {
+            return names.get(id);
+        }
+    }
+
+    // a growing sorted list of rows
+    private static class Rows {
+        int[] rows = new int[4];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        void addAll(Rows other) {
+            if (size + other.size > rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(rows.length * 2, size + other.size));
+            }
+            System.arraycopy(other.rows, 0, rows, size, other.size);
+            size += other.size;
+        }
+    }
+
+    private static class Instance {
+        static EventStore instance = new EventStore();
+    }
+}
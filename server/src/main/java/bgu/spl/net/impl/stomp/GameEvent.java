@@ -0,0 +1,95 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A game event as the client reports it in a SEND body:
+ *
+ * <pre>
+ * user: alice
+ * team a: Germany
+ * team b: Japan
+ * event name: goal!!!!
+ * time: 1980
+ * general game updates:
+ *     active: true
+ * team a updates:
+ *     goals: 1
+ * team b updates:
+ * description:
+ * free text, to the end of the body
+ * </pre>
+ *
+ * Parsed the way the client parses the MESSAGE it gets, so the server's
+ * summary matches the one the client would write.
+ */
+class GameEvent {
+
+    String user;
+    String teamA = "";
+    String teamB = "";
+    String name;
+    int time;
+    final Map<String, String> generalUpdates = new LinkedHashMap<>();
+    final Map<String, String> teamAUpdates = new LinkedHashMap<>();
+    final Map<String, String> teamBUpdates = new LinkedHashMap<>();
+    String description = "";
+
+    /**
+     * @return the event, or null if the body is not an event report
+     */
+    static GameEvent parse(String body) {
+        GameEvent event = new GameEvent();
+        Map<String, String> section = null;
+        StringBuilder description = null;
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            String line = body.substring(start, end > start && body.charAt(end - 1) == '\r' ? end - 1 : end);
+            start = end + 1;
+
+            if (description != null) {
+                description.append(description.length() > 0 ? "\n" : "").append(line);
+            } else if (line.startsWith("user: ")) {
+                event.user = line.substring(6);
+            } else if (line.startsWith("team a: ")) {
+                event.teamA = line.substring(8);
+            } else if (line.startsWith("team b: ")) {
+                event.teamB = line.substring(8);
+            } else if (line.startsWith("event name: ")) {
+                event.name = line.substring(12);
+            } else if (line.startsWith("time: ")) {
+                try {
+                    event.time = Integer.parseInt(line.substring(6).trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if (line.equals("general game updates:")) {
+                section = event.generalUpdates;
+            } else if (line.equals("team a updates:")) {
+                section = event.teamAUpdates;
+            } else if (line.equals("team b updates:")) {
+                section = event.teamBUpdates;
+            } else if (line.equals("description:")) {
+                description = new StringBuilder();
+            } else if (section != null && line.startsWith(" ")) {
+                int colon = line.indexOf(':');
+                if (colon >= 0) {
+                    String value = line.substring(colon + 1);
+                    section.put(line.substring(0, colon).trim(), value.startsWith(" ") ? value.substring(1) : value);
+                }
+            }
+        }
+        if (event.name == null) {
+            return null;
+        }
+        if (description != null) {
+            event.description = description.toString();
+        }
+        return event;
+    }
+}
@@ -0,0 +1,166 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The running summary of every (channel, reporting user), built from the
+ * events as they are sent: the latest general and team stats and the events
+ * in game time order. A client asking for a summary gets it without the
+ * server or the client going over the events again. A summary keeps each
+ * event only as its rendered lines, and at most stomp.summary.events of them;
+ * the stats still follow the events after that.
+ */
+class GameSummaries {
+
+    private static final int MAX_EVENTS = Integer.getInteger("stomp.summary.events", 1000);
+
+    private static final Map<String, Map<String, Summary>> channels = new ConcurrentHashMap<>();
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Metrics.gauge("events.summaryDropped", dropped::sum);
+    }
+
+    private GameSummaries() {
+    }
+
+    /**
+     * Adds a reported event to its reporter's summary of the channel
+     */
+    static void record(String channel, String user, GameEvent event) {
+        channels.computeIfAbsent(channel, c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(user, u -> new Summary())
+                .add(event);
+    }
+
+    /**
+     * @return the user's summary of the channel, null if it reported no events there
+     */
+    static Summary of(String channel, String user) {
+        Map<String, Summary> users = channels.get(channel);
+        return users == null ? null : users.get(user);
+    }
+
+    /**
+     * One user's events of one game. A stat holds the value of the event
+     * latest in game time that updated it, as if the events were replayed
+     * in time order (reports of the same time in the order they came).
+     */
+    static class Summary {
+
+        // a lock so virtual threads do not pin
+        private final ReentrantLock lock = new ReentrantLock();
+        private String teamA;
+        private String teamB;
+        private final Map<String, Stat> general = new TreeMap<>();
+        private final Map<String, Stat> teamAStats = new TreeMap<>();
+        private final Map<String, Stat> teamBStats = new TreeMap<>();
+        private final List<Line> events = new ArrayList<>(); // by game time, then arrival
+        private String text; // the rendered summary, until the next event
+
+        private static class Stat {
+            String value;
+            int time;
+        }
+
+        // an event as the summary writes it
+        private record Line(int time, String text) {
+        }
+
+        void add(GameEvent event) {
+            lock.lock();
+            try {
+                if (teamA == null) {
+                    teamA = event.teamA;
+                    teamB = event.teamB;
+                }
+                update(general, event.generalUpdates, event.time);
+                update(teamAStats, event.teamAUpdates, event.time);
+                update(teamBStats, event.teamBUpdates, event.time);
+                text = null;
+                if (events.size() == MAX_EVENTS) {
+                    dropped.increment();
+                    return;
+                }
+                // after the events of the same time or earlier, reports mostly come in order
+                int at = events.size();
+                while (at > 0 && events.get(at - 1).time > event.time) {
+                    at--;
+                }
+                events.add(at, new Line(event.time,
+                        event.time + " - " + event.name + ":\n\n" + event.description + "\n\n\n"));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static void update(Map<String, Stat> stats, Map<String, String> updates, int time) {
+            for (Map.Entry<String, String> update : updates.entrySet()) {
+                Stat stat = stats.get(update.getKey());
+                if (stat == null) {
+                    stat = new Stat();
+                    stats.put(update.getKey(), stat);
+                } else if (stat.time > time) {
+                    continue; // a later event already set it
+                }
+                stat.value = update.getValue();
+                stat.time = time;
+            }
+        }
+
+        int events() {
+            lock.lock();
+            try {
+                return events.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the summary as the client's summary command writes it
+         */
+        String text() {
+            lock.lock();
+            try {
+                if (text == null) {
+                    text = render();
+                }
+                return text;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private String render() {
+            StringBuilder out = new StringBuilder();
+            out.append(teamA).append(" vs ").append(teamB).append('\n');
+            out.append("Game stats:\n");
+            out.append("General stats:\n");
+            appendStats(out, general);
+            out.append(teamA).append(" stats:\n");
+            appendStats(out, teamAStats);
+            out.append(teamB).append(" stats:\n");
+            appendStats(out, teamBStats);
+            out.append("Game event reports:\n");
+            for (Line event : events) {
+                out.append(event.text);
+            }
+            return out.toString();
+        }
+
+        private static void appendStats(StringBuilder out, Map<String, Stat> stats) {
+            for (Map.Entry<String, Stat> stat : stats.entrySet()) {
+                out.append(stat.getKey()).append(": ").append(stat.getValue().value).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Samples the server's metrics every stomp.metrics.intervalMillis (0 by default - off)
+ * and sends each group as a MESSAGE to $SYS/&lt;group&gt; (e.g. /$SYS/latency),
+ * whose body holds one "name: value" line per metric. Clients follow them like
+ * any other destination, /$SYS/# gets them all. A group nobody follows is not
+ * sent, so it takes no message-id.
+ */
+public class MetricsPublisher {
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    private MetricsPublisher() {
+    }
+
+    /**
+     * Starts publishing on the server's connections, once
+     */
+    public static void start(ConnectionsImpl<StompFrame> connections) {
+        if (!Metrics.ENABLED || !started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread publisher = new Thread(() -> publishPeriodically(connections), "metrics-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    private static void publishPeriodically(ConnectionsImpl<StompFrame> connections) {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(Metrics.INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                for (Map.Entry<String, String> group : Metrics.sample().entrySet()) {
+                    publish(connections, Metrics.SYS_PREFIX + group.getKey(), group.getValue());
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void publish(ConnectionsImpl<StompFrame> connections, String destination, String body) {
+        if (!connections.hasSubscribers(destination)) {
+            return;
+        }
+        int messageId = StompMessagingProtocolImpl.nextMessageId();
+        ByteBuffer headers = ByteBuffer.wrap((
+                "message-id:" + messageId + "\n" +
+                "destination:/" + destination + "\n" +
+                "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        ByteBuffer frameBody = ByteBuffer.wrap((body + "\0").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        connections.publish(destination, messageId, StompMessagingProtocolImpl::messageDelivery, null,
+                headers, frameBody);
+    }
+}
@@ -1,45 +1,42 @@
 package bgu.spl.net.impl.stomp;
 
-import java.io.*;
-import java.net.*;
+import bgu.spl.net.impl.data.AuditRecord;
+import bgu.spl.net.impl.data.SqlConnectionPool;
+import bgu.spl.net.srv.Metrics;
+
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 /**
  * Helper class to communicate with the Python SQL server.
- * Sends SQL strings and receives responses.
+ * Sends SQL strings and receives responses. The record methods only queue
+ * the write, the AuditWriter stores it in the background in the Persistence
+ * stomp.persistence selects.
  */
 public class SqlClient {
-    private static final String SQL_HOST = "127.0.0.1";
-    private static final int SQL_PORT = 7778;
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    static {
+        SqlConnectionPool pool = SqlConnectionPool.getInstance();
+        Metrics.gauge("sql.statements", pool::statements);
+        Metrics.gauge("sql.failures", pool::failures);
+        Metrics.gauge("sql.inFlight", pool::inFlight);
+        Metrics.gauge("sql.connects", pool::connects);
+        AuditWriter audit = AuditWriter.getInstance();
+        Metrics.gauge("sql.auditSubmitted", audit::submitted);
+        Metrics.gauge("sql.auditWritten", audit::written);
+        Metrics.gauge("sql.auditDropped", audit::dropped);
+    }
+
     /**
-     * Execute an SQL command/query by sending it to the Python SQL server.
+     * Execute an SQL command/query by sending it to the Python SQL server,
+     * over one of the pooled connections.
      * 
      * @param sql The SQL string to execute
      * @return The response from the server, or an error message
      */
     public static String executeSql(String sql) {
-        try (Socket socket = new Socket(SQL_HOST, SQL_PORT);
-                OutputStream out = socket.getOutputStream();
-                InputStream in = socket.getInputStream()) {
-
-            // Send SQL with null terminator (as expected by Python server)
-            out.write((sql + "\0").getBytes("UTF-8"));
-            out.flush();
-
-            // Read response until null terminator
-            ByteArrayOutputStream response = new ByteArrayOutputStream();
-            int b;
-            while ((b = in.read()) != -1 && b != 0) {
-                response.write(b);
-            }
-            return response.toString("UTF-8");
-        } catch (IOException e) {
-            System.err.println("[SqlClient] Error: " + e.getMessage());
-            return "ERROR:" + e.getMessage();
-        }
+        return SqlConnectionPool.getInstance().execute(sql);
     }
 
     //Get current timestamp formatted for SQL.
@@ -47,45 +44,23 @@ public class SqlClient {
         return LocalDateTime.now().format(formatter);
     }
 
-    //Escape single quotes in SQL strings to prevent SQL injection.
-   
-    private static String escape(String value) {
-        if (value == null)
-            return "";
-        return value.replace("'", "''");
-    }
-
- 
-
     //Record a new user registration.
     public static void registerUser(String username, String password) {
-        String sql = String.format(
-                "INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', '%s')",
-                escape(username), escape(password), getCurrentTimestamp());
-        executeSql(sql);
+        AuditWriter.getInstance().submit(AuditRecord.register(username, password, getCurrentTimestamp()));
     }
 
     //Record a user login.
     public static void recordLogin(String username) {
-        String sql = String.format(
-                "INSERT INTO login_history (username, login_time) VALUES ('%s', '%s')",
-                escape(username), getCurrentTimestamp());
-        executeSql(sql);
+        AuditWriter.getInstance().submit(AuditRecord.login(username, getCurrentTimestamp()));
     }
 
     //Record a user logout (update the latest login record without a logout time).
     public static void recordLogout(String username) {
-        String sql = String.format(
-                "UPDATE login_history SET logout_time = '%s' WHERE username = '%s' AND logout_time IS NULL",
-                getCurrentTimestamp(), escape(username));
-        executeSql(sql);
+        AuditWriter.getInstance().submit(AuditRecord.logout(username, getCurrentTimestamp()));
     }
 
     //Record a file upload via the report command.
     public static void recordFileUpload(String username, String filename, String gameChannel) {
-        String sql = String.format(
-                "INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES ('%s', '%s', '%s', '%s')",
-                escape(username), escape(filename), getCurrentTimestamp(), escape(gameChannel));
-        executeSql(sql);
+        AuditWriter.getInstance().submit(AuditRecord.fileUpload(username, filename, gameChannel, getCurrentTimestamp()));
     }
 }
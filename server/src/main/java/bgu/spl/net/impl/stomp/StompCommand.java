@@ -0,0 +1,50 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The command line of a STOMP frame
+ */
+public enum StompCommand {
+    // client frames
+    CONNECT, STOMP, SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT, DISCONNECT,
+    // server frames
+    CONNECTED, MESSAGE, RECEIPT, ERROR,
+    // anything else, the raw command line is kept by the frame
+    UNKNOWN;
+
+    private static final StompCommand[] VALUES = values();
+
+    private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * @return the command name as it is written on the wire
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Resolves a command line without creating a String for it
+     */
+    public static StompCommand parse(byte[] frame, int offset, int length) {
+        for (StompCommand command : VALUES) {
+            if (command != UNKNOWN && command.matches(frame, offset, length)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private boolean matches(byte[] frame, int offset, int length) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (frame[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
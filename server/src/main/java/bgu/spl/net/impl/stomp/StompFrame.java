@@ -0,0 +1,256 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A STOMP frame kept as the bytes it was received (or will be sent) as.
+ * The frame owns a single array holding the whole frame including the null
+ * terminator. The command is resolved when the frame is created, the headers
+ * are indexed (as offsets into the array) the first time one is looked up,
+ * and the body is only turned into a String when asked for.
+ * The lazy index is not synchronized, a frame belongs to one thread at a time.
+ */
+public class StompFrame {
+
+    private final byte[] bytes; // the frame, ends with the '\0' terminator
+    private final StompCommand command;
+    private final int commandStart;
+    private final int commandEnd;
+
+    // header index - [keyStart, keyEnd, valueStart, valueEnd] per header, built lazily
+    private int[] headerSlices;
+    private int headerCount;
+    private int bodyStart;
+
+    private StompFrame(byte[] bytes) {
+        this.bytes = bytes;
+
+        // skip the EOLs (heart beats) that may come before a frame
+        int start = 0;
+        int end = bytes.length - 1;
+        while (start < end && (bytes[start] == '\n' || bytes[start] == '\r')) {
+            start++;
+        }
+        int lineEnd = indexOf((byte) '\n', start, end);
+        int commandEnd = trimEnd(start, lineEnd);
+        int commandStart = trimStart(start, commandEnd);
+
+        this.commandStart = commandStart;
+        this.commandEnd = commandEnd;
+        this.command = StompCommand.parse(bytes, commandStart, commandEnd - commandStart);
+        this.bodyStart = -1;
+    }
+
+    /**
+     * Wraps a received frame, the array is owned by the frame from now on
+     *
+     * @param bytes the frame bytes, including the '\0' terminator
+     */
+    public static StompFrame parse(byte[] bytes) {
+        return new StompFrame(bytes);
+    }
+
+    /**
+     * Builds a frame to send
+     *
+     * @param command the frame command
+     * @param body    the frame body, or null for none
+     * @param headers header names and values, alternating
+     */
+    public static StompFrame create(StompCommand command, String body, String... headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + (body != null ? body.length() : 0));
+        out.writeBytes(command.bytes());
+        out.write('\n');
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            out.writeBytes(headers[i].getBytes(StandardCharsets.UTF_8));
+            out.write(':');
+            out.writeBytes(headers[i + 1].getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.write('\n');
+        if (body != null) {
+            out.writeBytes(body.getBytes(StandardCharsets.UTF_8));
+        }
+        out.write('\0');
+        return new StompFrame(out.toByteArray());
+    }
+
+    public StompCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the command line as written by the client, useful for UNKNOWN commands
+     */
+    public String getCommandLine() {
+        return new String(bytes, commandStart, commandEnd - commandStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the value of the first header with this name (trimmed), or null if missing
+     */
+    public String getHeader(String name) {
+        indexHeaders();
+        for (int i = 0; i < headerCount; i++) {
+            int at = i * 4;
+            if (nameEquals(name, headerSlices[at], headerSlices[at + 1])) {
+                int valueStart = headerSlices[at + 2];
+                return new String(bytes, valueStart, headerSlices[at + 3] - valueStart, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the first body byte in getBytes()
+     */
+    public int getBodyOffset() {
+        indexHeaders();
+        return bodyStart;
+    }
+
+    /**
+     * @return the number of body bytes, not counting the terminator
+     */
+    public int getBodyLength() {
+        indexHeaders();
+        return bytes.length - 1 - bodyStart;
+    }
+
+    /**
+     * @return the body decoded as UTF-8, allocates a new String on every call
+     */
+    public String getBody() {
+        return new String(bytes, getBodyOffset(), getBodyLength(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a read only view of the body followed by the frame terminator,
+     *         ready to be sent as the tail of another frame
+     */
+    public ByteBuffer getBodyWithTerminator() {
+        int offset = getBodyOffset();
+        return ByteBuffer.wrap(bytes, offset, bytes.length - offset).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Looks for a body line starting with the given prefix
+     *
+     * @return the rest of that line (trimmed), or null if no line starts with the prefix
+     */
+    public String findBodyLine(String prefix) {
+        int end = bytes.length - 1;
+        int lineStart = getBodyOffset();
+        while (lineStart < end) {
+            int lineEnd = indexOf((byte) '\n', lineStart, end);
+            if (startsWith(prefix, lineStart, lineEnd)) {
+                int valueEnd = trimEnd(lineStart + prefix.length(), lineEnd);
+                int valueStart = trimStart(lineStart + prefix.length(), valueEnd);
+                return new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the whole frame including the terminator, the array is not copied
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private void indexHeaders() {
+        if (bodyStart >= 0) {
+            return;
+        }
+
+        int[] slices = new int[4 * 4];
+        int count = 0;
+        int end = bytes.length - 1;
+        int lineStart = Math.min(commandLineEnd() + 1, end);
+        int body = end;
+        while (lineStart < end) {
+            int lineEnd = indexOf((byte) '\n', lineStart, end);
+            int contentEnd = trimEnd(lineStart, lineEnd);
+            if (contentEnd == lineStart) { // the empty line before the body
+                body = Math.min(lineEnd + 1, end);
+                break;
+            }
+            int colon = indexOf((byte) ':', lineStart, contentEnd);
+            if (colon < contentEnd) {
+                if ((count + 1) * 4 > slices.length) {
+                    slices = Arrays.copyOf(slices, slices.length * 2);
+                }
+                int at = count * 4;
+                slices[at] = trimStart(lineStart, colon);
+                slices[at + 1] = trimEnd(slices[at], colon);
+                slices[at + 3] = trimEnd(colon + 1, contentEnd);
+                slices[at + 2] = trimStart(colon + 1, slices[at + 3]);
+                count++;
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        headerSlices = slices;
+        headerCount = count;
+        bodyStart = body;
+    }
+
+    private int commandLineEnd() {
+        return indexOf((byte) '\n', commandEnd, bytes.length - 1);
+    }
+
+    // index of the first b in [from, to), or to if there is none
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && isSpace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && isSpace(bytes[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    // header names are ASCII, so they are compared char by byte without decoding
+    private boolean nameEquals(String name, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (bytes[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(String prefix, int start, int end) {
+        return end - start >= prefix.length() && nameEquals(prefix, start, start + prefix.length());
+    }
+}
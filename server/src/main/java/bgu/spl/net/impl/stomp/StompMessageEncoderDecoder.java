@@ -1,26 +1,51 @@
 package bgu.spl.net.impl.stomp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.nio.ByteBuffer;
 import bgu.spl.net.api.MessageEncoderDecoder;
 
-public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompMessageEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
     private byte[] bytes = new byte[1 << 10]; // start with 1k
     private int len = 0;
 
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
+        pushByte(nextByte);
         if (nextByte == '\0') {
-            return popString();
+            return popFrame();
         }
-        pushByte(nextByte);
-        return null; // not a line yet
+        return null; // not a frame yet
+    }
+
+    @Override
+    public List<StompFrame> decode(ByteBuffer buffer) {
+        int scanFrom = len;
+        pushBytes(buffer);
+
+        List<StompFrame> messages = null;
+        int start = 0;
+        for (int i = scanFrom; i < len; i++) {
+            if (bytes[i] == '\0') {
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                }
+                // the frame keeps its terminator, so it can be sent on as is
+                messages.add(StompFrame.parse(Arrays.copyOfRange(bytes, start, i + 1)));
+                start = i + 1;
+            }
+        }
+
+        dropBytes(start);
+        return messages != null ? messages : Collections.emptyList();
     }
 
     @Override
-    public byte[] encode(String message) {
-        return (message + "\0").getBytes(); // uses utf8 by default
+    public byte[] encode(StompFrame message) {
+        return message.getBytes(); // already encoded, including the terminator
     }
 
     private void pushByte(byte nextByte) {
@@ -31,13 +56,28 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        // notice that we explicitly requesting that the string will be decoded from
-        // UTF-8
-        // this is not actually required as it is the default encoding in java.
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private void pushBytes(ByteBuffer buffer) {
+        int count = buffer.remaining();
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len * 2, len + count));
+        }
+
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    // removes the first count bytes (the completed frames), keeping the partial one
+    private void dropBytes(int count) {
+        if (count > 0) {
+            System.arraycopy(bytes, count, bytes, 0, len - count);
+            len -= count;
+        }
+    }
+
+    private StompFrame popFrame() {
+        StompFrame result = StompFrame.parse(Arrays.copyOf(bytes, len));
         len = 0;
         return result;
     }
 
-}
\ No newline at end of file
+}
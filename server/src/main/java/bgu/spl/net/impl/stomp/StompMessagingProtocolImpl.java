@@ -1,25 +1,61 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.data.User;
+import bgu.spl.net.impl.data.UserStore;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
-
+import bgu.spl.net.srv.DurableLog;
+import bgu.spl.net.srv.FanOut;
+import bgu.spl.net.srv.MessageHistory;
+import bgu.spl.net.srv.Metrics;
+import bgu.spl.net.srv.SubscriptionTrie;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
 
     private int connectionId;
-    private ConnectionsImpl<String> connections;
+    private ConnectionsImpl<StompFrame> connections;
     private boolean shouldTerminate = false;
     private String username;
 
     // static maps for the server (thread safe)
-    private static Map<String, String> registeredUsers = new ConcurrentHashMap<>();
-    private static Map<String, Integer> loggedInUsers = new ConcurrentHashMap<>();
+    // the users and the connections they are logged in on, logging in and out without a lock
+    private static final UserStore users = UserStore.getInstance();
     private static java.util.concurrent.atomic.AtomicInteger messageIdCounter = new java.util.concurrent.atomic.AtomicInteger(
             0);
+    // the counter starts after the durable log's ids, a lock so virtual threads do not pin
+    private static final ReentrantLock seedLock = new ReentrantLock();
+    private static volatile boolean messageIdsSeeded = false;
+    private static final byte[] MESSAGE_ID_HEADER = "message-id:".getBytes(StandardCharsets.US_ASCII);
+
+    // destinations of requests answered by the server, see handleRequest
+    static final String REQUEST_PREFIX = "$request/";
+
+    // frames received, by command - server frames sent by a client count as UNKNOWN
+    private static final LongAdder[] framesIn = new LongAdder[StompCommand.values().length];
+
+    static {
+        EnumSet<StompCommand> serverFrames = EnumSet.of(
+                StompCommand.CONNECTED, StompCommand.MESSAGE, StompCommand.RECEIPT, StompCommand.ERROR);
+        for (StompCommand command : StompCommand.values()) {
+            if (!serverFrames.contains(command)) {
+                framesIn[command.ordinal()] = Metrics.counter("frames.in." + command);
+            }
+        }
+        for (StompCommand command : serverFrames) {
+            framesIn[command.ordinal()] = framesIn[StompCommand.UNKNOWN.ordinal()];
+        }
+    }
 
     // private maps for the specific client
     private Map<Integer, String> subscriptionIdToChannel = new HashMap<>();
@@ -27,57 +63,68 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     private java.util.Set<String> recordedFiles = new java.util.HashSet<>();  // Track files already logged
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
-        this.connections = (ConnectionsImpl<String>) connections;
+        this.connections = (ConnectionsImpl<StompFrame>) connections;
+        seedMessageIds(this.connections);
+        MetricsPublisher.start(this.connections);
     }
 
-    @Override
-    public void process(String message) {
-        String[] lines = message.split("\n");
-        String command = lines[0].trim();
-
-        // extract headers from the message
-        Map<String, String> headers = new HashMap<>();
-        int bodyStart = 1;
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].isEmpty()) {
-                bodyStart = i + 1;
-                break;
-            }
-            String[] parts = lines[i].split(":", 2);
-            if (parts.length == 2) {
-                headers.put(parts[0].trim(), parts[1].trim());
+    // continues after the highest message-id of the durable log, so ids are not reused after a restart;
+    // every connection waits for it here, before it can publish
+    private static void seedMessageIds(ConnectionsImpl<StompFrame> connections) {
+        if (messageIdsSeeded) {
+            return;
+        }
+        seedLock.lock();
+        try {
+            if (!messageIdsSeeded) {
+                int[] highest = { -1 };
+                connections.readLogs((offset, record) -> highest[0] = Math.max(highest[0], loggedMessageId(record)));
+                messageIdCounter.set(highest[0] + 1);
+                messageIdsSeeded = true;
             }
+        } finally {
+            seedLock.unlock();
         }
+    }
 
-        // extract body from the message
-        StringBuilder bodyBuilder = new StringBuilder();
-        for (int i = bodyStart; i < lines.length; i++) {
-            if (i > bodyStart)
-                bodyBuilder.append("\n");
-            bodyBuilder.append(lines[i]);
+    // a logged message starts with its "message-id:N" header, see sendMessageToChannel
+    private static int loggedMessageId(ByteBuffer record) {
+        int at = record.position();
+        for (byte b : MESSAGE_ID_HEADER) {
+            if (at >= record.limit() || record.get(at++) != b) {
+                return -1;
+            }
+        }
+        int id = 0;
+        while (at < record.limit() && record.get(at) >= '0' && record.get(at) <= '9') {
+            id = id * 10 + (record.get(at++) - '0');
         }
-        String body = bodyBuilder.toString();
+        return id;
+    }
 
-        switch (command) {
-            case "CONNECT":
-                handleConnect(headers);
+    @Override
+    public void process(StompFrame frame) {
+        framesIn[frame.getCommand().ordinal()].increment();
+        switch (frame.getCommand()) {
+            case CONNECT:
+                handleConnect(frame);
                 break;
-            case "SUBSCRIBE":
-                handleSubscribe(headers);
+            case SUBSCRIBE:
+                handleSubscribe(frame);
                 break;
-            case "SEND":
-                handleSend(headers, body);
+            case SEND:
+                handleSend(frame);
                 break;
-            case "UNSUBSCRIBE":
-                handleUnsubscribe(headers);
+            case UNSUBSCRIBE:
+                handleUnsubscribe(frame);
                 break;
-            case "DISCONNECT":
-                handleDisconnect(headers);
+            case DISCONNECT:
+                handleDisconnect(frame);
                 break;
             default:
-                sendError("Unknown command: " + command, headers.get("receipt"));
+                sendError("Unknown command: " + frame.getCommandLine(), frame.getHeader("receipt"));
         }
     }
 
@@ -86,43 +133,43 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
-    private void handleConnect(Map<String, String> headers) {
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
+    @Override
+    public StompFrame slowConsumerError() {
+        return StompFrame.create(StompCommand.ERROR,
+                "The server closed this connection because it did not read its messages in time",
+                "message", "Slow consumer");
+    }
+
+    private void handleConnect(StompFrame frame) {
+        String login = frame.getHeader("login");
+        String passcode = frame.getHeader("passcode");
 
         if (login == null || passcode == null) {
             sendError("Missing login or passcode", null);
             return;
         }
-        synchronized (registeredUsers) {
-            if (loggedInUsers.containsKey(login)) {
-                sendError("User already logged in", null);
-                return;
-            }
-            if (registeredUsers.containsKey(login)) {
-                if (!registeredUsers.get(login).equals(passcode)) {
-                    sendError("Wrong password", null);
-                    return;
-                }
-            } else {
-                registeredUsers.put(login, passcode);
-                // Record new user in database
-                SqlClient.registerUser(login, passcode);
-            }
-            loggedInUsers.put(login, connectionId);
-            this.username = login;
-            // Record login in database
-            SqlClient.recordLogin(login);
+        User user = users.register(login, passcode, connectionId);
+        if (user == null) {
+            // Record new user in database
+            SqlClient.registerUser(login, passcode);
+        } else if (!user.password.equals(passcode)) {
+            sendError("Wrong password", null);
+            return;
+        } else if (!users.login(user, connectionId)) {
+            sendError("User already logged in", null);
+            return;
         }
+        this.username = login;
+        // Record login in database
+        SqlClient.recordLogin(login);
 
-        String response = "CONNECTED\nversion:1.2\n\n";
-        connections.send(connectionId, response);
+        connections.send(connectionId, StompFrame.create(StompCommand.CONNECTED, null, "version", "1.2"));
     }
 
-    private void handleSubscribe(Map<String, String> headers) {
-        String destination = headers.get("destination");
-        String id = headers.get("id");
-        String receipt = headers.get("receipt");
+    private void handleSubscribe(StompFrame frame) {
+        String destination = frame.getHeader("destination");
+        String id = frame.getHeader("id");
+        String receipt = frame.getHeader("receipt");
 
         if (destination == null || id == null) {
             sendError("Missing destination or id", receipt);
@@ -135,19 +182,43 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         int subscriptionId = Integer.parseInt(id);
 
-        connections.subscribe(connectionId, destination, subscriptionId);
+        // retained messages of the destination to get before the live ones
+        MessageHistory.Replay replay;
+        try {
+            replay = parseReplay(frame);
+        } catch (NumberFormatException e) {
+            sendError("Invalid replay header", receipt);
+            return;
+        }
+
         subscriptionIdToChannel.put(subscriptionId, destination);
         channelToSubscriptionId.put(destination, subscriptionId);
+        // the receipt goes out once publishes see the subscription
+        connections.subscribe(connectionId, destination, subscriptionId, replay,
+                StompMessagingProtocolImpl::messageDelivery, receiptSender(receipt));
+    }
 
-        if (receipt != null) {
-            String response = "RECEIPT\nreceipt-id:" + receipt + "\n\n";
-            connections.send(connectionId, response);
+    // replay-last:N - the last N retained messages, replay-since:<message-id> - the ones after it,
+    // log-offset:N - the durable log from offset N on
+    private static MessageHistory.Replay parseReplay(StompFrame frame) {
+        String offset = frame.getHeader("log-offset");
+        if (offset != null) {
+            return MessageHistory.Replay.fromOffset(Long.parseLong(offset.trim()));
         }
+        String last = frame.getHeader("replay-last");
+        if (last != null) {
+            return MessageHistory.Replay.last(Integer.parseInt(last.trim()));
+        }
+        String since = frame.getHeader("replay-since");
+        if (since != null) {
+            return MessageHistory.Replay.since(Long.parseLong(since.trim()));
+        }
+        return null;
     }
 
-    private void handleSend(Map<String, String> headers, String body) {
-        String destination = headers.get("destination");
-        String receipt = headers.get("receipt");
+    private void handleSend(StompFrame frame) {
+        String destination = frame.getHeader("destination");
+        String receipt = frame.getHeader("receipt");
 
         if (destination == null) {
             sendError("Missing destination", receipt);
@@ -158,22 +229,42 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             destination = destination.substring(1);
         }
 
+        if (destination.startsWith(Metrics.SYS_PREFIX)) {
+            sendError("Cannot send to a $SYS destination", receipt);
+            return;
+        }
+
+        if (SubscriptionTrie.isWildcard(destination)) {
+            sendError("Cannot send to a wildcard destination", receipt);
+            return;
+        }
+
         if (!connections.isSubscribed(connectionId, destination)) {
             sendError("Cannot send to channel you are not subscribed to", receipt);
             return;
         }
 
-        int messageId = messageIdCounter.getAndIncrement();
-        sendMessageToChannel(destination, body, messageId);
+        if (destination.startsWith(REQUEST_PREFIX)) {
+            handleRequest(destination, frame, receipt);
+            return;
+        }
+
+        int messageId = nextMessageId();
+        // the receipt follows the message, the sender sees its own copy first
+        sendMessageToChannel(destination, frame, messageId, receiptSender(receipt));
+
+        // keep the reporter's summary of the game up to date
+        GameEvent event = GameEvent.parse(frame.getBody());
+        if (event != null) {
+            String reporter = event.user != null ? event.user : username;
+            GameSummaries.record(destination, reporter, event);
+            EventStore.getInstance().submit(destination, reporter, event, messageId);
+        }
 
         // Parse source file from body for file tracking
-        String filename = "unknown";
-        String[] bodyLines = body.split("\n");
-        for (String line : bodyLines) {
-            if (line.startsWith("source file: ")) {
-                filename = line.substring(13).trim();
-                break;
-            }
+        String filename = frame.findBodyLine("source file: ");
+        if (filename == null) {
+            filename = "unknown";
         }
 
         // Record file upload in database (only once per file per session)
@@ -182,16 +273,106 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             recordedFiles.add(fileKey);
             SqlClient.recordFileUpload(username, filename, destination);
         }
+    }
+
+    static int nextMessageId() {
+        return messageIdCounter.getAndIncrement();
+    }
+
+    // sends the RECEIPT for a frame when run, null if the frame asked for none
+    // a request is answered by a MESSAGE to the sender alone, under its subscription to the request destination:
+    // $request/summary (game, user headers) - the user's summary of the game as the summary command writes it,
+    // an empty body if the user reported no events there
+    // $request/events (any of channel, user, event-name, from, to; cursor, limit) - a page of the matching events
+    private void handleRequest(String destination, StompFrame frame, String receipt) {
+        String body;
+        List<String> headers = new ArrayList<>();
+        switch (destination.substring(REQUEST_PREFIX.length())) {
+            case "summary": {
+                String game = frame.getHeader("game");
+                String user = frame.getHeader("user");
+                if (game == null || user == null) {
+                    sendError("Missing game or user", receipt);
+                    return;
+                }
+                GameSummaries.Summary summary = GameSummaries.of(game.startsWith("/") ? game.substring(1) : game, user);
+                body = summary == null ? "" : summary.text();
+                break;
+            }
+            case "events": {
+                EventStore.Query query;
+                try {
+                    query = parseEventQuery(frame);
+                } catch (NumberFormatException e) {
+                    sendError("Invalid events query", receipt);
+                    return;
+                }
+                EventStore.Page page = EventStore.getInstance().query(query);
+                body = page.text();
+                headers.add("events");
+                headers.add(String.valueOf(page.events()));
+                if (page.next() >= 0) {
+                    headers.add("next-cursor");
+                    headers.add(String.valueOf(page.next()));
+                }
+                break;
+            }
+            default:
+                sendError("Unknown request: /" + destination, receipt);
+                return;
+        }
 
+        String requestId = frame.getHeader("request-id");
+        if (requestId != null) {
+            headers.add("request-id");
+            headers.add(requestId);
+        }
+        headers.addAll(0, List.of(
+                "subscription", String.valueOf(channelToSubscriptionId.get(destination)),
+                "message-id", String.valueOf(nextMessageId()),
+                "destination", "/" + destination));
+        connections.send(connectionId, StompFrame.create(StompCommand.MESSAGE, body, headers.toArray(new String[0])));
         if (receipt != null) {
-            String response = "RECEIPT\nreceipt-id:" + receipt + "\n\n";
-            connections.send(connectionId, response);
+            connections.send(connectionId, StompFrame.create(StompCommand.RECEIPT, null, "receipt-id", receipt));
         }
     }
 
-    private void handleUnsubscribe(Map<String, String> headers) {
-        String id = headers.get("id");
-        String receipt = headers.get("receipt");
+    // from and to are game times, inclusive; cursor is the next-cursor of the previous page
+    private static EventStore.Query parseEventQuery(StompFrame frame) {
+        EventStore.Query query = new EventStore.Query();
+        query.channel = frame.getHeader("channel");
+        if (query.channel != null && query.channel.startsWith("/")) {
+            query.channel = query.channel.substring(1);
+        }
+        query.user = frame.getHeader("user");
+        query.name = frame.getHeader("event-name");
+        String from = frame.getHeader("from");
+        String to = frame.getHeader("to");
+        String cursor = frame.getHeader("cursor");
+        String limit = frame.getHeader("limit");
+        query.fromTime = from == null ? null : Integer.valueOf(from.trim());
+        query.toTime = to == null ? null : Integer.valueOf(to.trim());
+        query.after = cursor == null ? -1 : Integer.parseInt(cursor.trim());
+        if (query.after < -1) {
+            throw new NumberFormatException("cursor " + query.after); // a next-cursor is never below 0
+        }
+        if (limit != null) {
+            query.limit = Math.max(1, Math.min(EventStore.MAX_PAGE, Integer.parseInt(limit.trim())));
+        }
+        return query;
+    }
+
+    private Runnable receiptSender(String receipt) {
+        if (receipt == null) {
+            return null;
+        }
+        int to = connectionId;
+        return () -> connections.send(to, StompFrame.create(StompCommand.RECEIPT, null, "receipt-id", receipt));
+    }
+
+    private void handleUnsubscribe(StompFrame frame) {
+        String id = frame.getHeader("id");
+        String receipt = frame.getHeader("receipt");
 
         if (id == null) {
             sendError("Missing id", receipt);
@@ -207,24 +388,20 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
 
         if (receipt != null) {
-            String response = "RECEIPT\nreceipt-id:" + receipt + "\n\n";
-            connections.send(connectionId, response);
+            connections.send(connectionId, StompFrame.create(StompCommand.RECEIPT, null, "receipt-id", receipt));
         }
     }
 
-    private void handleDisconnect(Map<String, String> headers) {
-        String receipt = headers.get("receipt");
+    private void handleDisconnect(StompFrame frame) {
+        String receipt = frame.getHeader("receipt");
 
         // Send receipt BEFORE disconnecting (so handler still exists)
         if (receipt != null) {
-            String response = "RECEIPT\nreceipt-id:" + receipt + "\n\n";
-            connections.send(connectionId, response);
+            connections.send(connectionId, StompFrame.create(StompCommand.RECEIPT, null, "receipt-id", receipt));
         }
 
         if (username != null) {
-            synchronized (registeredUsers) {
-                loggedInUsers.remove(username);
-            }
+            users.logout(connectionId);
             // Record logout in database
             SqlClient.recordLogout(username);
         }
@@ -233,41 +410,49 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         shouldTerminate = true;
     }
 
-    private void sendMessageToChannel(String channel, String body, int messageId) {
-        // Get all subscribers for this channel
-        java.util.Set<Integer> subscribers = connections.getSubscribers(channel);
-        if (subscribers == null) {
-            return;
-        }
+    private void sendMessageToChannel(String channel, StompFrame frame, int messageId, Runnable onDelivered) {
+        // Everything after the subscription header is the same for all subscribers:
+        // the headers are encoded once and the body (with its terminator) is sent
+        // straight out of the received frame
+        ByteBuffer sharedHeaders = ByteBuffer.wrap((
+                "message-id:" + messageId + "\n" +
+                "destination:/" + channel + "\n" +
+                "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        ByteBuffer body = frame.getBodyWithTerminator();
+
+        // Send personalized MESSAGE to each subscriber with THEIR subscription ID,
+        // large channels are split over the fan-out pool. The shared part is what
+        // the durable log stores and the history retains, so neither re-encodes it
+        connections.publish(channel, messageId, StompMessagingProtocolImpl::messageDelivery, onDelivered,
+                sharedHeaders, body);
+    }
 
-        // Send personalized MESSAGE to each subscriber with THEIR subscription ID
-        for (Integer subscriberId : subscribers) {
-            int subId = connections.getSubscriptionId(subscriberId, channel);
-            String messageFrame = "MESSAGE\n" +
-                    "subscription:" + subId + "\n" +
-                    "message-id:" + messageId + "\n" +
-                    "destination:/" + channel + "\n" +
-                    "\n" +
-                    body;
-            connections.send(subscriberId, messageFrame);
-        }
+    // the MESSAGE frame of every subscriber: its own subscription (and the log offset) followed by the shared part
+    static FanOut.Delivery<StompFrame> messageDelivery(long offset, ByteBuffer... shared) {
+        String offsetHeader = offset >= 0 ? "log-offset:" + offset + "\n" : "";
+        return subscriber -> {
+            ByteBuffer[] frame = new ByteBuffer[shared.length + 1];
+            frame[0] = ByteBuffer.wrap(("MESSAGE\nsubscription:" + subscriber.subscriptionId + "\n" + offsetHeader)
+                    .getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < shared.length; i++) {
+                frame[i + 1] = shared[i].duplicate();
+            }
+            subscriber.handler.sendEncoded(frame);
+        };
     }
 
     private void sendError(String message, String receiptId) {
-        StringBuilder error = new StringBuilder();
-        error.append("ERROR\n");
-        error.append("message:").append(message).append("\n");
+        StompFrame error;
         if (receiptId != null) {
-            error.append("receipt-id:").append(receiptId).append("\n");
+            error = StompFrame.create(StompCommand.ERROR, null, "message", message, "receipt-id", receiptId);
+        } else {
+            error = StompFrame.create(StompCommand.ERROR, null, "message", message);
         }
-        error.append("\n");
 
-        connections.send(connectionId, error.toString());
+        connections.send(connectionId, error);
 
         if (username != null) {
-            synchronized (registeredUsers) {
-                loggedInUsers.remove(username);
-            }
+            users.logout(connectionId);
         }
 
         shouldTerminate = true;
@@ -1,12 +1,13 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.impl.data.UserStore;
 import bgu.spl.net.srv.Server;
 
 public class StompServer {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println("Usage: StompServer <port> <tpc|tpc-virtual|reactor|multi-reactor>");
             return;
         }
 
@@ -20,19 +21,34 @@ public class StompServer {
 
         String serverType = args[1].toLowerCase();
 
+        // load the registered users before the first login
+        UserStore.getInstance();
+
         if (serverType.equals("tpc")) {
             Server.threadPerClient(
                     port,
                     StompMessagingProtocolImpl::new,
                     StompMessageEncoderDecoder::new).serve();
+        } else if (serverType.equals("tpc-virtual")) {
+            Server.virtualThreadPerClient(
+                    port,
+                    StompMessagingProtocolImpl::new,
+                    StompMessageEncoderDecoder::new).serve();
         } else if (serverType.equals("reactor")) {
             Server.reactor(
                     Runtime.getRuntime().availableProcessors(),
                     port,
                     StompMessagingProtocolImpl::new,
                     StompMessageEncoderDecoder::new).serve();
+        } else if (serverType.equals("multi-reactor")) {
+            Server.multiReactor(
+                    Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().availableProcessors(),
+                    port,
+                    StompMessagingProtocolImpl::new,
+                    StompMessageEncoderDecoder::new).serve();
         } else {
-            System.out.println("Unknown server type: " + args[1] + ". Use 'tpc' or 'reactor'.");
+            System.out.println("Unknown server type: " + args[1] + ". Use 'tpc', 'tpc-virtual', 'reactor' or 'multi-reactor'.");
         }
     }
 }
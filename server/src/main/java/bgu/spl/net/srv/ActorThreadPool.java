@@ -1,38 +1,56 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    // runnables waiting in an actor's mailbox, seen by each new one
+    private static final Histogram MAILBOX_DEPTH = Metrics.histogram("actors.mailboxDepth");
+
+    // runnables an actor may run each time it is scheduled, before yielding the thread
+    private static final int DRAIN_BUDGET = Integer.getInteger("stomp.actor.drainBudget", 64);
+
     private final ExecutorService threads;
+    private final int drainBudget;
 
     public ActorThreadPool(int threads) {
+        this(threads, DRAIN_BUDGET);
+    }
+
+    public ActorThreadPool(int threads, int drainBudget) {
         this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this.drainBudget = drainBudget;
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    /**
+     * The runnables of one actor, kept by the actor itself. Any thread may add
+     * to it, only the thread currently scheduled for the actor takes from it.
+     */
+    public static class Mailbox {
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private Runnable drainTask; // created by the pool on the first schedule
+
+        /**
+         * @return the number of runnables waiting to run
+         */
+        public int size() {
+            return size.get();
+        }
+    }
+
+    public void submit(Mailbox act, Runnable r) {
+        MAILBOX_DEPTH.record(act.size.incrementAndGet() - 1);
+        act.pending.add(r);
+        if (act.scheduled.compareAndSet(false, true)) {
+            schedule(act);
         }
     }
 
@@ -40,38 +58,45 @@ public class ActorThreadPool {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    // called only by the thread that set the scheduled flag
+    private void schedule(Mailbox act) {
+        if (act.drainTask == null) {
+            act.drainTask = () -> drain(act);
+        }
+        try {
+            threads.execute(act.drainTask);
+        } catch (RejectedExecutionException ex) {
+            // the pool was shut down
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
-                r.run();
-            } finally {
-                complete(act);
+    private void drain(Mailbox act) {
+        try {
+            Runnable r;
+            for (int i = 0; i < drainBudget && (r = act.pending.poll()) != null; i++) {
+                act.size.decrementAndGet();
+                try {
+                    r.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
             }
-        });
+        } finally {
+            // also after an Error, which ends this thread, so the actor is never left scheduled
+            release(act);
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private void release(Mailbox act) {
+        if (!act.pending.isEmpty()) {
+            schedule(act); // budget used up, let the other actors run first
+            return;
+        }
+
+        act.scheduled.set(false);
+        // a runnable added after the last poll may have lost the flag to us
+        if (!act.pending.isEmpty() && act.scheduled.compareAndSet(false, true)) {
+            schedule(act);
         }
     }
 
@@ -7,9 +7,13 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; // 8k
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
@@ -18,6 +22,9 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    // a lock and not a monitor, so a virtual thread blocked on the socket does not pin its carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private byte[] writeScratch; // copies read only / direct frame parts, guarded by writeLock
 
     public BlockingConnectionHandler(
             Socket sock,
@@ -44,9 +51,12 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
             connections.setHandler(connectionId, this);
             protocol.start(connectionId, connections);
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            while (!protocol.shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                for (T nextMessage : encdec.decode(chunk, 0, read)) {
+                    if (protocol.shouldTerminate()) {
+                        break;
+                    }
                     protocol.process(nextMessage);
                     // StompMessagingProtocol sends responses via Connections, not return value
                 }
@@ -68,13 +78,52 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void send(T msg) {
         try {
             if (out != null) {
-                synchronized (out) {
+                writeLock.lock();
+                try {
                     out.write(encdec.encode(msg));
                     out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... frameParts) {
+        try {
+            if (out != null) {
+                writeLock.lock();
+                try {
+                    for (ByteBuffer part : frameParts) {
+                        writePart(part);
+                    }
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
                 }
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
+
+    private void writePart(ByteBuffer part) throws IOException {
+        if (part.hasArray()) {
+            out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+            part.position(part.limit());
+            return;
+        }
+
+        if (writeScratch == null) {
+            writeScratch = new byte[READ_CHUNK_SIZE];
+        }
+        while (part.hasRemaining()) {
+            int count = Math.min(part.remaining(), writeScratch.length);
+            part.get(writeScratch, 0, count);
+            out.write(writeScratch, 0, count);
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of slots written by many threads and read by a single one.
+ * Every slot carries a sequence number telling whether it is free for the lap
+ * a producer is on or holds an item for the consumer, so producers only race
+ * on the tail counter and the consumer never takes a lock.
+ * A producer finding the ring full waits for the consumer to free a slot.
+ */
+public class BoundedRing<E> {
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // consumer only
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private final LongAdder producerWaits = new LongAdder();
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    public BoundedRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an item, waiting while the ring is full
+     */
+    public void put(E item) {
+        int spins = 0;
+        while (!offer(item)) {
+            if (spins++ == 0) {
+                producerWaits.increment();
+            }
+            if (spins < 64) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    public boolean offer(E item) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long lap = sequences.get(slot) - position;
+            if (lap == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.set(slot, item);
+                    sequences.set(slot, position + 1); // publishes the item
+                    if (consumerWaiting) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                position = tail.get();
+            } else if (lap < 0) {
+                return false; // the consumer did not free this slot yet
+            } else {
+                position = tail.get(); // another producer took it
+            }
+        }
+    }
+
+    /**
+     * Consumer only
+     *
+     * @return the oldest item, or null if the ring is empty
+     */
+    public E poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        E item = items.get(slot);
+        items.set(slot, null);
+        sequences.set(slot, head + mask + 1); // free for the producers' next lap
+        head++;
+        return item;
+    }
+
+    /**
+     * Consumer only - parks until an item may have arrived, or a millisecond passed
+     */
+    public void awaitItems() {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        if (sequences.get((int) head & mask) != head + 1) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        consumerWaiting = false;
+    }
+
+    /**
+     * @return the number of times a producer found the ring full
+     */
+    public long producerWaits() {
+        return producerWaits.sum();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
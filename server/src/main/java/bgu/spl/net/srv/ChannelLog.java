@@ -0,0 +1,266 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The append-only log of one destination, a directory of memory-mapped
+ * segment files named after the offset of their first record. A record is
+ * its length, the CRC32C of its payload and the payload; appending one is a
+ * copy into the mapped pages, the disk catches up when the pages are forced.
+ * Opening a log scans its segments, rebuilding the offset index and cutting
+ * off a record torn by a crash.
+ */
+public class ChannelLog {
+
+    private static final int RECORD_HEADER = 8; // length, crc
+    private static final int INDEX_INTERVAL = 32; // records between two index entries
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextOffset;
+
+    // guarded by syncLock, so appends go on while the pages are forced
+    private final Object syncLock = new Object();
+    private long syncedOffset;
+    private int firstUnsynced; // index of the oldest segment that may hold unforced records
+
+    private ChannelLog(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens the log in the directory, recovering the records of its segments
+     */
+    public static ChannelLog open(Path dir, int segmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        ChannelLog log = new ChannelLog(dir, segmentBytes);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = Segment.map(file, baseOffset, (int) Math.min(Integer.MAX_VALUE, Files.size(file)));
+            segment.recover();
+            log.segments.add(segment);
+            log.nextOffset = baseOffset + segment.count;
+        }
+        log.syncedOffset = log.nextOffset;
+        log.firstUnsynced = Math.max(0, log.segments.size() - 1);
+        return log;
+    }
+
+    /**
+     * Appends one record made of the remaining bytes of the parts, which are
+     * left untouched
+     *
+     * @return the offset of the record
+     */
+    public synchronized long append(ByteBuffer... parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.position + RECORD_HEADER + length > segment.buffer.capacity()) {
+            segment = roll(RECORD_HEADER + length);
+        }
+        segment.append(parts, length);
+        return nextOffset++;
+    }
+
+    /**
+     * Hands every record from the given offset on to the visitor, oldest
+     * first, as read-only views of the mapped segments
+     */
+    public void read(long fromOffset, RecordVisitor visitor) {
+        read(fromOffset, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Hands the records of offsets [fromOffset, toOffset) to the visitor, oldest first
+     */
+    public synchronized void read(long fromOffset, long toOffset, RecordVisitor visitor) {
+        int first = 0;
+        while (first + 1 < segments.size() && segments.get(first + 1).baseOffset <= fromOffset) {
+            first++;
+        }
+        for (int s = first; s < segments.size() && segments.get(s).baseOffset < toOffset; s++) {
+            segments.get(s).read(fromOffset, toOffset, visitor);
+        }
+    }
+
+    /**
+     * Forces the records below the given offset to disk. Callers arriving
+     * while a force runs wait for it and usually find their records covered.
+     */
+    public void sync(long upToOffset) {
+        synchronized (syncLock) {
+            if (syncedOffset >= upToOffset) {
+                return;
+            }
+            long target;
+            Segment[] dirty;
+            int[] ends;
+            synchronized (this) {
+                target = nextOffset;
+                dirty = segments.subList(firstUnsynced, segments.size()).toArray(new Segment[0]);
+                ends = new int[dirty.length];
+                for (int i = 0; i < dirty.length; i++) {
+                    ends[i] = dirty[i].position;
+                }
+                firstUnsynced = Math.max(0, segments.size() - 1);
+            }
+            for (int i = 0; i < dirty.length; i++) {
+                dirty[i].force(ends[i]);
+            }
+            syncedOffset = target;
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk
+     */
+    public void sync() {
+        sync(nextOffset());
+    }
+
+    /**
+     * @return the offset the next record gets, the number of records ever appended
+     */
+    public synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    // starts a segment fitting at least the given bytes, the caller holds the log's lock
+    private Segment roll(int bytes) {
+        Path file = dir.resolve(String.format("%020d%s", nextOffset, SUFFIX));
+        try {
+            Segment segment = Segment.map(file, nextOffset, Math.max(segmentBytes, bytes));
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Receives the records read from a log
+     */
+    public interface RecordVisitor {
+        void record(long offset, ByteBuffer payload);
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final MappedByteBuffer buffer;
+        int position; // where the next record goes
+        int count;
+        int[] index = new int[16]; // position of every INDEX_INTERVAL-th record
+        int syncedPosition; // guarded by the log's syncLock
+
+        private Segment(long baseOffset, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.buffer = buffer;
+        }
+
+        static Segment map(Path file, long baseOffset, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping outlives the channel
+                return new Segment(baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        // walks the records left by the previous run, stopping at the first incomplete one
+        void recover() {
+            CRC32C crc = new CRC32C();
+            while (position + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.slice(position + RECORD_HEADER, length));
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                indexRecord();
+                position += RECORD_HEADER + length;
+                count++;
+            }
+            // wipe a torn record, so records appended after it never run into its leftovers
+            if (position + RECORD_HEADER <= buffer.capacity() && buffer.getInt(position) != 0) {
+                byte[] zeros = new byte[Math.min(64 << 10, buffer.capacity() - position)];
+                for (int i = position; i < buffer.capacity(); i += zeros.length) {
+                    buffer.put(i, zeros, 0, Math.min(zeros.length, buffer.capacity() - i));
+                }
+                buffer.force();
+            }
+            syncedPosition = position;
+        }
+
+        void append(ByteBuffer[] parts, int length) {
+            CRC32C crc = new CRC32C();
+            int at = position + RECORD_HEADER;
+            for (ByteBuffer part : parts) {
+                int remaining = part.remaining();
+                buffer.put(at, part, part.position(), remaining);
+                crc.update(part.duplicate());
+                at += remaining;
+            }
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.putInt(position, length);
+            indexRecord();
+            position = at;
+            count++;
+        }
+
+        void read(long fromOffset, long toOffset, RecordVisitor visitor) {
+            int skip = (int) Math.max(0, Math.min(count, fromOffset - baseOffset));
+            int end = (int) Math.max(0, Math.min(count, toOffset - baseOffset));
+            int record = skip / INDEX_INTERVAL * INDEX_INTERVAL;
+            int at = record < count ? index[record / INDEX_INTERVAL] : position;
+            for (; record < end; record++) {
+                int length = buffer.getInt(at);
+                if (record >= skip) {
+                    visitor.record(baseOffset + record, buffer.slice(at + RECORD_HEADER, length).asReadOnlyBuffer());
+                }
+                at += RECORD_HEADER + length;
+            }
+        }
+
+        void force(int end) {
+            if (end > syncedPosition) {
+                buffer.force(syncedPosition, end - syncedPosition);
+                syncedPosition = end;
+            }
+        }
+
+        private void indexRecord() {
+            if (count % INDEX_INTERVAL == 0) {
+                int entry = count / INDEX_INTERVAL;
+                if (entry == index.length) {
+                    index = Arrays.copyOf(index, entry * 2);
+                }
+                index[entry] = position;
+            }
+        }
+    }
+}
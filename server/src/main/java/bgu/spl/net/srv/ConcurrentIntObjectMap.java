@@ -0,0 +1,263 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * A concurrent map from int keys (connection ids) to objects, without boxing
+ * the keys or allocating an entry per mapping.
+ * The keys are spread over stripes, each an open addressing table (linear
+ * probing) guarded by a StampedLock. Lookups read optimistically and only take
+ * the read lock if a writer got in the way.
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    private static final int DEFAULT_STRIPES = 16;
+    private static final int MIN_STRIPE_CAPACITY = 8;
+    private static final Object TOMBSTONE = new Object(); // a removed mapping, keeps the probe chains intact
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    public ConcurrentIntObjectMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of independently locked tables, rounded up to a power of 2
+     */
+    public ConcurrentIntObjectMap(int stripes) {
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1) << 1);
+        this.stripes = new Stripe[count];
+        this.stripeMask = count - 1;
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public V get(int key) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash & stripeMask];
+        long stamp = stripe.lock.tryOptimisticRead();
+        Object value = stripe.find(key, hash);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                value = stripe.find(key, hash);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return cast(value);
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, or null if there was none
+     */
+    public V put(int key, V value) {
+        return update(key, value, false);
+    }
+
+    /**
+     * @return the current value, or null if the value was added
+     */
+    public V putIfAbsent(int key, V value) {
+        return update(key, value, true);
+    }
+
+    /**
+     * @return the current value, computed and added if there was none
+     */
+    public V computeIfAbsent(int key, IntFunction<V> mapping) {
+        V current = get(key);
+        if (current != null) {
+            return current;
+        }
+        V created = mapping.apply(key);
+        V raced = putIfAbsent(key, created);
+        return raced != null ? raced : created;
+    }
+
+    /**
+     * @return the removed value, or null if there was none
+     */
+    public V remove(int key) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash & stripeMask];
+        long stamp = stripe.lock.writeLock();
+        try {
+            return cast(stripe.remove(key, hash));
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Visits the values of one stripe at a time, mappings changed meanwhile
+     * may or may not be seen
+     */
+    public void forEachValue(Consumer<? super V> action) {
+        for (Stripe stripe : stripes) {
+            Object[] values;
+            long stamp = stripe.lock.readLock();
+            try {
+                values = stripe.values.clone();
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            for (Object value : values) {
+                if (value != null && value != TOMBSTONE) {
+                    action.accept(cast(value));
+                }
+            }
+        }
+    }
+
+    private V update(int key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        int hash = hash(key);
+        Stripe stripe = stripes[hash & stripeMask];
+        long stamp = stripe.lock.writeLock();
+        try {
+            return cast(stripe.put(key, hash, value, onlyIfAbsent));
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+
+    // connection ids are sequential, spread them over the stripes (low bits) and the slots (high bits first)
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        // keys[i] is meaningful only when values[i] is neither null nor TOMBSTONE
+        int[] keys = new int[MIN_STRIPE_CAPACITY];
+        Object[] values = new Object[MIN_STRIPE_CAPACITY];
+        int size; // live mappings
+        int used; // live mappings and tombstones
+
+        // may run without the lock, so it reads every array once and never loops forever
+        Object find(int key, int hash) {
+            int[] keys = this.keys;
+            Object[] values = this.values;
+            int mask = Math.min(keys.length, values.length) - 1;
+            int index = Integer.rotateLeft(hash, 16) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                Object value = values[index];
+                if (value == null) {
+                    return null;
+                }
+                if (value != TOMBSTONE && keys[index] == key) {
+                    return value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        Object put(int key, int hash, Object value, boolean onlyIfAbsent) {
+            int mask = keys.length - 1;
+            int index = Integer.rotateLeft(hash, 16) & mask;
+            int free = -1;
+            for (int probes = 0; probes <= mask; probes++) {
+                Object current = values[index];
+                if (current == null) {
+                    break;
+                }
+                if (current == TOMBSTONE) {
+                    if (free < 0) {
+                        free = index;
+                    }
+                } else if (keys[index] == key) {
+                    if (!onlyIfAbsent) {
+                        values[index] = value;
+                    }
+                    return current;
+                }
+                index = (index + 1) & mask;
+            }
+
+            if (free < 0) {
+                free = index;
+                used++;
+            }
+            keys[free] = key;
+            values[free] = value;
+            size++;
+            if (used * 4 >= keys.length * 3) {
+                rehash(size * 2 >= keys.length ? keys.length * 2 : keys.length);
+            }
+            return null;
+        }
+
+        Object remove(int key, int hash) {
+            int mask = keys.length - 1;
+            int index = Integer.rotateLeft(hash, 16) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                Object current = values[index];
+                if (current == null) {
+                    return null;
+                }
+                if (current != TOMBSTONE && keys[index] == key) {
+                    values[index] = TOMBSTONE;
+                    size--;
+                    if (size * 8 < keys.length && keys.length > MIN_STRIPE_CAPACITY) {
+                        rehash(keys.length / 2);
+                    }
+                    return current;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        // new arrays are filled before they are published, so optimistic readers see whole tables
+        private void rehash(int capacity) {
+            int[] newKeys = new int[capacity];
+            Object[] newValues = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                Object value = values[i];
+                if (value != null && value != TOMBSTONE) {
+                    int index = Integer.rotateLeft(hash(keys[i]), 16) & mask;
+                    while (newValues[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    newKeys[index] = keys[i];
+                    newValues[index] = value;
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+            used = size;
+        }
+    }
+}
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,20 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a frame that is already encoded, as the concatenation of the given parts.
+     * The parts are consumed, so a buffer shared between several handlers should be
+     * handed to each one as its own duplicate().
+     */
+    void sendEncoded(ByteBuffer... frameParts);
+
+    /**
+     * Sends a frame replayed from the retained or logged messages of a destination.
+     * A replay can be far larger than what a slow consumer may have queued, so it is
+     * not counted against that limit.
+     */
+    default void sendReplayed(ByteBuffer... frameParts) {
+        sendEncoded(frameParts);
+    }
+
 }
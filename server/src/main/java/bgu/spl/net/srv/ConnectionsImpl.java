@@ -1,37 +1,71 @@
 package bgu.spl.net.srv;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    // connectionHandler for each ID (KEY:ID VALUE:ConnectionHandler)
-    private Map<Integer, ConnectionHandler<T>> connections = new ConcurrentHashMap<>();
+    private static final LongAdder PUBLISHED = Metrics.counter("fanout.published");
+    // subscribers a published message went to
+    private static final Histogram FANOUT_SIZE = Metrics.histogram("fanout.subscribers");
 
-    // Channel for each ID (KEY: Channel VALUE: set of IDs)
-    private Map<String, Set<Integer>> channels = new ConcurrentHashMap<>();
+    static {
+        Metrics.gauge("fanout.parallel", FanOut::parallelFanOuts);
+        Metrics.gauge("fanout.threshold", FanOut::threshold);
+        Metrics.gauge("fanout.subscriberCostNanos", FanOut::subscriberCostNanos);
+    }
+
+    // session of each connection - its handler and subscriptions (KEY:ID VALUE:Session)
+    private final ConcurrentIntObjectMap<Session<T>> sessions = new ConcurrentIntObjectMap<>();
+
+    // most destinations whose matches are cached before the cache starts over
+    private static final int MATCH_CACHE_SIZE = Integer.getInteger("stomp.destinations.matchCacheSize", 10_000);
 
-    // ID with list of his channels (KEY: ID VALUE: set of channels)
-    private Map<Integer, Set<String>> clientChannels = new ConcurrentHashMap<>();
+    // subscribed patterns (channels, hierarchical destinations and wildcards), guarded by subscriptionsLock
+    private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+    private final ReadWriteLock subscriptionsLock = new ReentrantReadWriteLock();
 
-    // Subscription ID mapping: connectionId -> (channel -> subscriptionId)
-    private Map<Integer, Map<String, Integer>> subscriptionIds = new ConcurrentHashMap<>();
+    // published destination -> immutable snapshot of its subscribers, rebuilt by the first publish after a change
+    // filled under the read lock and invalidated under the write lock, so a stale snapshot is never cached
+    private final Map<String, Snapshot<T>> matchCache = new ConcurrentHashMap<>();
 
     // AtomicInteger for the next ID (thread safe)
     private AtomicInteger nextId = new AtomicInteger(0);
 
+    // dispatcher shards owning the subscriptions instead of the trie above (0 - no shards)
+    private static final int DISPATCH_SHARDS = Integer.getInteger("stomp.dispatch.shards", 0);
+    private static final int DISPATCH_RING_CAPACITY = Integer.getInteger("stomp.dispatch.ringCapacity", 4096);
+    // destinations' durable logs, null if stomp.log.dir is not set
+    private final DurableLog log = DurableLog.open();
+    private final ShardedDispatcher<T> dispatcher = DISPATCH_SHARDS > 0
+            ? new ShardedDispatcher<>(DISPATCH_SHARDS, DISPATCH_RING_CAPACITY, log)
+            : null;
+
+    // messages retained per destination for replay on SUBSCRIBE (0 - none)
+    /* package */ static final int HISTORY_MESSAGES = Integer.getInteger("stomp.history.messages", 0);
+    /* package */ static final long HISTORY_BYTES = Long.getLong("stomp.history.bytes", 1L << 20);
+    // destination -> the order of its deliveries and its retained messages, used when retaining or logging;
+    // none for the $SYS destinations
+    private final Map<String, Sequencer<T>> sequencers = new ConcurrentHashMap<>();
+    // logged messages a replay reads at a time, then delivers without holding the log
+    private static final int REPLAY_CHUNK = 256;
+
     /**
      * Registers a handler and returns the assigned connection ID
      */
     public int registerAndGetId(ConnectionHandler<T> handler) {
         int id = nextId.getAndIncrement();
-        if (handler != null) {
-            connections.put(id, handler);
-        }
-        clientChannels.put(id, ConcurrentHashMap.newKeySet());
-        subscriptionIds.put(id, new ConcurrentHashMap<>());
+        sessions.put(id, new Session<>(handler));
         return id;
     }
 
@@ -39,22 +73,19 @@ public class ConnectionsImpl<T> implements Connections<T> {
      * Sets/updates the handler for a given connection ID
      */
     public void setHandler(int connectionId, ConnectionHandler<T> handler) {
-        connections.put(connectionId, handler);
+        sessions.computeIfAbsent(connectionId, id -> new Session<>(null)).handler = handler;
     }
 
     /**
      * Legacy method - registers and assigns ID internally
      */
     public void registerConnection(ConnectionHandler<T> handler) {
-        int id = nextId.getAndIncrement();
-        connections.put(id, handler);
-        clientChannels.put(id, ConcurrentHashMap.newKeySet());
-        subscriptionIds.put(id, new ConcurrentHashMap<>());
+        registerAndGetId(handler);
     }
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = connections.get(connectionId);
+        ConnectionHandler<T> handler = getHandler(connectionId);
         if (handler != null) {
             handler.send(msg);
             return true;
@@ -62,44 +93,221 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false;
     }
 
+    /**
+     * Sends an already encoded frame, see ConnectionHandler.sendEncoded
+     */
+    public boolean sendEncoded(int connectionId, ByteBuffer... frameParts) {
+        ConnectionHandler<T> handler = getHandler(connectionId);
+        if (handler != null) {
+            handler.sendEncoded(frameParts);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void send(String channel, T msg) {
-        Set<Integer> subscribers = channels.get(channel);
-        if (subscribers != null) {
-            for (Integer id : subscribers) {
-                send(id, msg);
-            }
+        for (Subscriber<T> subscriber : getSubscribers(channel)) {
+            subscriber.handler.send(msg);
         }
     }
 
     @Override
     public void disconnect(int connectionId) {
-        Set<String> myChannels = clientChannels.remove(connectionId);
-        if (myChannels != null) {
-            for (String channel : myChannels) {
-                Set<Integer> subs = channels.get(channel);
-                if (subs != null) {
-                    subs.remove(connectionId);
+        Session<T> session = sessions.remove(connectionId);
+        if (session == null) {
+            return;
+        }
+        String[] myChannels;
+        session.lock.lock();
+        try {
+            myChannels = session.clear();
+        } finally {
+            session.lock.unlock();
+        }
+        if (dispatcher != null) {
+            dispatcher.disconnect(connectionId, myChannels);
+        } else if (myChannels.length > 0) {
+            subscriptionsLock.writeLock().lock();
+            try {
+                for (String channel : myChannels) {
+                    subscriptions.remove(channel, connectionId);
+                    invalidateMatches(channel);
                 }
+            } finally {
+                subscriptionsLock.writeLock().unlock();
             }
         }
-        subscriptionIds.remove(connectionId);
-        connections.remove(connectionId);
     }
 
     /**
      * Subscribe with subscription ID tracking
+     *
+     * @param channel a destination, segments separated by '/', "*" matching one
+     *                segment and "#" matching any number of segments
      */
     public void subscribe(int connectionId, String channel, int subscriptionId) {
-        channels.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(connectionId);
-        Set<String> myChannels = clientChannels.get(connectionId);
-        if (myChannels != null) {
-            myChannels.add(channel);
+        subscribe(connectionId, channel, subscriptionId, null);
+    }
+
+    /**
+     * @param onSubscribed runs once publishes see the subscription - right away,
+     *                     or on a dispatcher thread when dispatching is sharded
+     */
+    public void subscribe(int connectionId, String channel, int subscriptionId, Runnable onSubscribed) {
+        subscribe(connectionId, channel, subscriptionId, null, null, onSubscribed);
+    }
+
+    /**
+     * @param replay       retained or logged messages of the destination to
+     *                     deliver before the live ones, null for none (exact
+     *                     destinations only)
+     * @param encoder      builds the deliveries of logged messages
+     * @param onSubscribed runs once publishes see the subscription - right away,
+     *                     after the replay on the thread delivering the destination's
+     *                     messages, or on a dispatcher thread when dispatching is sharded
+     */
+    public void subscribe(int connectionId, String channel, int subscriptionId, MessageHistory.Replay replay,
+            DurableLog.Encoder<T> encoder, Runnable onSubscribed) {
+        Session<T> session = sessions.get(connectionId);
+        if (session == null) {
+            return; // disconnected
+        }
+        if (replay != null && (SubscriptionTrie.isWildcard(channel) || channel.startsWith(Metrics.SYS_PREFIX)
+                || (replay.logOffset() < 0 ? HISTORY_MESSAGES <= 0 : log == null))) {
+            replay = null;
+        }
+        Sequencer<T> replaying = null;
+        // under the session lock, so a concurrent disconnect either sees the subscription or prevents it
+        session.lock.lock();
+        try {
+            if (!session.subscribe(channel, subscriptionId)) {
+                return;
+            }
+            if (dispatcher != null) {
+                dispatcher.subscribe(channel, connectionId, subscriptionId, session.handler, replay, encoder,
+                        onSubscribed);
+                return;
+            }
+            if (replay == null) {
+                addSubscription(channel, connectionId, subscriptionId);
+            } else {
+                // no publish to the destination gets between the replay and the subscription,
+                // the replay is queued before the deliveries of the publishes after it
+                Sequencer<T> sequencer = sequencerOf(channel);
+                Runnable then = onSubscribed;
+                sequencer.lock();
+                try {
+                    addSubscription(channel, connectionId, subscriptionId);
+                    Runnable replayed = replay(log, sequencer.history, channel, replay, encoder,
+                            new Subscriber<>(session.handler, connectionId, subscriptionId));
+                    if (sequencer.add(then == null ? replayed : () -> {
+                        replayed.run();
+                        then.run();
+                    })) {
+                        replaying = sequencer;
+                    }
+                } finally {
+                    sequencer.unlock();
+                }
+                onSubscribed = null; // runs after the replay
+            }
+        } finally {
+            session.lock.unlock();
+        }
+        if (replaying != null) {
+            replaying.deliver();
+        }
+        if (onSubscribed != null) {
+            onSubscribed.run();
+        }
+    }
+
+    private void addSubscription(String channel, int connectionId, int subscriptionId) {
+        subscriptionsLock.writeLock().lock();
+        try {
+            subscriptions.add(channel, connectionId, subscriptionId);
+            invalidateMatches(channel);
+        } finally {
+            subscriptionsLock.writeLock().unlock();
+        }
+    }
+
+    private Sequencer<T> sequencerOf(String destination) {
+        return sequencers.computeIfAbsent(destination,
+                d -> new Sequencer<>(HISTORY_MESSAGES > 0 ? new MessageHistory<>(HISTORY_MESSAGES, HISTORY_BYTES) : null));
+    }
+
+    /**
+     * Picks the requested retained or logged messages, the caller serializes the
+     * destination's publishes
+     *
+     * @return delivers them, runs in the destination's order of deliveries
+     */
+    /* package */ static <T> Runnable replay(DurableLog log, MessageHistory<T> history, String destination,
+            MessageHistory.Replay replay, DurableLog.Encoder<T> encoder, Subscriber<T> live) {
+        Subscriber<T> subscriber = new Subscriber<>(new Replaying<>(live.handler), live.connectionId,
+                live.subscriptionId);
+        if (replay.logOffset() < 0) {
+            if (history == null) {
+                return () -> { };
+            }
+            List<FanOut.Delivery<T>> retained = history.replay(replay);
+            return () -> {
+                for (FanOut.Delivery<T> delivery : retained) {
+                    delivery.deliver(subscriber);
+                }
+            };
+        }
+        ChannelLog channelLog = log.existing(destination);
+        if (channelLog == null) {
+            return () -> { };
+        }
+        // the messages logged before the subscription, later ones reach it live
+        long upTo = channelLog.nextOffset();
+        return () -> {
+            List<FanOut.Delivery<T>> chunk = new ArrayList<>(REPLAY_CHUNK);
+            for (long from = replay.logOffset(); from < upTo; from += REPLAY_CHUNK) {
+                // copied out of the log's lock, so appends go on while the subscriber is written to
+                channelLog.read(from, Math.min(upTo, from + REPLAY_CHUNK),
+                        (offset, record) -> chunk.add(encoder.delivery(offset, record)));
+                for (FanOut.Delivery<T> delivery : chunk) {
+                    delivery.deliver(subscriber);
+                }
+                chunk.clear();
+            }
+        };
+    }
+
+    /* package */ static <T> void fanOut(Subscriber<T>[] subscribers, FanOut.Delivery<T> delivery) {
+        PUBLISHED.increment();
+        FANOUT_SIZE.record(subscribers.length);
+        FanOut.deliver(subscribers, delivery);
+    }
+
+    // logs and retains a message, the caller serializes the destination's publishes
+    /* package */ static <T> FanOut.Delivery<T> record(DurableLog log, MessageHistory<T> history, String destination,
+            long messageId, DurableLog.Encoder<T> encoder, ByteBuffer[] message) {
+        if (destination.startsWith(Metrics.SYS_PREFIX)) {
+            return encoder.delivery(-1, message); // the server's own messages are neither logged nor retained
         }
-        Map<String, Integer> mySubIds = subscriptionIds.get(connectionId);
-        if (mySubIds != null) {
-            mySubIds.put(channel, subscriptionId);
+        long offset = -1;
+        if (log != null) {
+            try {
+                offset = log.log(destination).append(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // still delivered live
+            }
         }
+        FanOut.Delivery<T> delivery = encoder.delivery(offset, message);
+        if (history != null) {
+            int bytes = 0;
+            for (ByteBuffer part : message) {
+                bytes += part.remaining();
+            }
+            history.append(messageId, bytes, delivery);
+        }
+        return delivery;
     }
 
     /**
@@ -110,45 +318,328 @@ public class ConnectionsImpl<T> implements Connections<T> {
     }
 
     public void unsubscribe(int connectionId, String channel) {
-        Set<String> myChannels = clientChannels.get(connectionId);
-        if (myChannels != null && myChannels.contains(channel)) {
-            myChannels.remove(channel);
-            Set<Integer> subs = channels.get(channel);
-            if (subs != null) {
-                subs.remove(connectionId);
-            }
+        Session<T> session = sessions.get(connectionId);
+        if (session == null) {
+            return;
         }
-        Map<String, Integer> mySubIds = subscriptionIds.get(connectionId);
-        if (mySubIds != null) {
-            mySubIds.remove(channel);
+        session.lock.lock();
+        try {
+            if (!session.unsubscribe(channel)) {
+                return;
+            }
+            if (dispatcher != null) {
+                dispatcher.unsubscribe(channel, connectionId);
+                return;
+            }
+            subscriptionsLock.writeLock().lock();
+            try {
+                subscriptions.remove(channel, connectionId);
+                invalidateMatches(channel);
+            } finally {
+                subscriptionsLock.writeLock().unlock();
+            }
+        } finally {
+            session.lock.unlock();
         }
     }
 
     public ConnectionHandler<T> getHandler(int connectionId) {
-        return connections.get(connectionId);
+        Session<T> session = sessions.get(connectionId);
+        return session != null ? session.handler : null;
     }
 
+    /**
+     * @return true if one of the connection's subscriptions matches the destination
+     */
     public boolean isSubscribed(int connectionId, String channel) {
-        Set<String> myChannels = clientChannels.get(connectionId);
-        return myChannels != null && myChannels.contains(channel);
+        if (dispatcher != null) {
+            Session<T> session = sessions.get(connectionId);
+            return session != null && session.matches(channel);
+        }
+        return Arrays.binarySearch(snapshot(channel).connectionIds, connectionId) >= 0;
+    }
+
+    /**
+     * Delivers a message to every connection subscribed to the destination,
+     * on this thread or through the destination's dispatcher shard, logs it
+     * in the destination's durable log and retains it for the subscriptions
+     * asking for a replay
+     *
+     * @param encoder     builds the delivery of the message once its log offset is known
+     * @param onDelivered runs after the last delivery (and the fsync under the
+     *                    BATCH policy), on the thread delivering the destination's
+     *                    messages, may be null
+     * @param message     the bytes shared by all the subscribers, logged as they are
+     */
+    public void publish(String destination, long messageId, DurableLog.Encoder<T> encoder, Runnable onDelivered,
+            ByteBuffer... message) {
+        if (dispatcher != null) {
+            dispatcher.publish(destination, messageId, encoder, onDelivered, message);
+            return;
+        }
+
+        if ((HISTORY_MESSAGES > 0 || log != null) && !destination.startsWith(Metrics.SYS_PREFIX)) {
+            // a subscription replaying the destination either sees this message recorded or gets it live,
+            // and queueing the fan-out under the lock makes the log's order the order the subscribers see,
+            // so resuming after the last log offset seen skips nothing
+            Sequencer<T> sequencer = sequencerOf(destination);
+            boolean deliver;
+            sequencer.lock();
+            try {
+                FanOut.Delivery<T> delivery = record(log, sequencer.history, destination, messageId, encoder, message);
+                Subscriber<T>[] subscribers = getSubscribers(destination);
+                deliver = sequencer.add(() -> {
+                    fanOut(subscribers, delivery);
+                    afterDelivery(destination, onDelivered);
+                });
+            } finally {
+                sequencer.unlock();
+            }
+            if (deliver) {
+                sequencer.deliver();
+            }
+        } else {
+            fanOut(getSubscribers(destination), encoder.delivery(-1, message));
+            afterDelivery(destination, onDelivered);
+        }
+    }
+
+    private void afterDelivery(String destination, Runnable onDelivered) {
+        ChannelLog channelLog = log != null && DurableLog.FSYNC == DurableLog.FsyncPolicy.BATCH
+                ? log.existing(destination)
+                : null;
+        if (channelLog != null) {
+            // publishers arriving during a force are covered by the next one together
+            channelLog.sync();
+        }
+        if (onDelivered != null) {
+            onDelivered.run();
+        }
+    }
+
+    /**
+     * Visits every message in the destinations' durable logs, nothing if there is no log
+     */
+    public void readLogs(ChannelLog.RecordVisitor visitor) {
+        if (log != null) {
+            log.readAll(visitor);
+        }
+    }
+
+    /**
+     * @return false if no subscription matches the destination; always true
+     *         when dispatching is sharded, the shards own the subscriptions
+     */
+    public boolean hasSubscribers(String destination) {
+        return dispatcher != null || getSubscribers(destination).length > 0;
     }
 
     /**
      * Get the subscription ID for a specific connection and channel
      */
     public int getSubscriptionId(int connectionId, String channel) {
-        Map<String, Integer> mySubIds = subscriptionIds.get(connectionId);
-        if (mySubIds != null) {
-            Integer subId = mySubIds.get(channel);
-            return subId != null ? subId : 0;
+        Session<T> session = sessions.get(connectionId);
+        return session != null ? session.subscriptionId(channel) : 0;
+    }
+
+    /**
+     * Matches a published destination against all the subscriptions. The array
+     * is shared by every publish to the destination until a subscription that
+     * may match it changes, it must not be modified.
+     * Always empty when dispatching is sharded, the shards own the subscriptions.
+     *
+     * @return one entry per subscribed connection, with the subscription ID the
+     *         message is delivered with
+     */
+    public Subscriber<T>[] getSubscribers(String channel) {
+        return snapshot(channel).subscribers;
+    }
+
+    private Snapshot<T> snapshot(String destination) {
+        Snapshot<T> snapshot = matchCache.get(destination);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        subscriptionsLock.readLock().lock();
+        try {
+            if (matchCache.size() >= MATCH_CACHE_SIZE) {
+                matchCache.clear();
+            }
+            return matchCache.computeIfAbsent(destination, this::buildSnapshot);
+        } finally {
+            subscriptionsLock.readLock().unlock();
+        }
+    }
+
+    private Snapshot<T> buildSnapshot(String destination) {
+        Map<Integer, Integer> matches = subscriptions.match(destination);
+        Subscriber<T>[] subscribers = newSubscribers(matches.size());
+        int count = 0;
+        for (Map.Entry<Integer, Integer> match : matches.entrySet()) {
+            ConnectionHandler<T> handler = getHandler(match.getKey());
+            if (handler != null) {
+                subscribers[count++] = new Subscriber<>(handler, match.getKey(), match.getValue());
+            }
+        }
+        subscribers = Arrays.copyOf(subscribers, count);
+
+        int[] connectionIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            connectionIds[i] = subscribers[i].connectionId;
+        }
+        Arrays.sort(connectionIds);
+        return new Snapshot<>(subscribers, connectionIds);
+    }
+
+    // generic arrays cannot be created, only cast
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    /* package */ static <T> Subscriber<T>[] newSubscribers(int length) {
+        return new Subscriber[length];
+    }
+
+    // called with the write lock held
+    private void invalidateMatches(String pattern) {
+        if (SubscriptionTrie.isWildcard(pattern)) {
+            matchCache.clear();
+        } else {
+            matchCache.remove(pattern);
         }
-        return 0;
     }
 
     /**
-     * Get all subscribers for a channel
+     * A connection subscribed to a published destination
      */
-    public Set<Integer> getSubscribers(String channel) {
-        return channels.get(channel);
+    public static final class Subscriber<T> {
+        public final ConnectionHandler<T> handler;
+        public final int connectionId;
+        public final int subscriptionId;
+
+        Subscriber(ConnectionHandler<T> handler, int connectionId, int subscriptionId) {
+            this.handler = handler;
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+        }
+    }
+
+    /**
+     * What the server keeps per connection: its handler and its subscriptions,
+     * as two parallel arrays since a connection has only a few
+     */
+    private static final class Session<T> {
+        private static final String[] NO_CHANNELS = new String[0];
+        private static final int[] NO_IDS = new int[0];
+
+        volatile ConnectionHandler<T> handler;
+        // held by subscribe, unsubscribe and disconnect, a lock so virtual threads do not pin
+        final ReentrantLock lock = new ReentrantLock();
+        private String[] channels = NO_CHANNELS; // guarded by this
+        private int[] subscriptionIds = NO_IDS;
+        private int count;
+        private boolean closed;
+
+        Session(ConnectionHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        // false once the connection is disconnected
+        synchronized boolean subscribe(String channel, int subscriptionId) {
+            if (closed) {
+                return false;
+            }
+            int at = indexOf(channel);
+            if (at < 0) {
+                if (count == channels.length) {
+                    int capacity = Math.max(2, count * 2);
+                    channels = Arrays.copyOf(channels, capacity);
+                    subscriptionIds = Arrays.copyOf(subscriptionIds, capacity);
+                }
+                at = count++;
+                channels[at] = channel;
+            }
+            subscriptionIds[at] = subscriptionId;
+            return true;
+        }
+
+        synchronized boolean unsubscribe(String channel) {
+            int at = indexOf(channel);
+            if (at < 0) {
+                return false;
+            }
+            count--;
+            channels[at] = channels[count];
+            subscriptionIds[at] = subscriptionIds[count];
+            channels[count] = null;
+            return true;
+        }
+
+        synchronized boolean matches(String destination) {
+            for (int i = 0; i < count; i++) {
+                if (SubscriptionTrie.matches(channels[i], destination)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int subscriptionId(String channel) {
+            int at = indexOf(channel);
+            return at >= 0 ? subscriptionIds[at] : 0;
+        }
+
+        // returns the subscribed channels and forgets them
+        synchronized String[] clear() {
+            String[] subscribed = Arrays.copyOf(channels, count);
+            channels = NO_CHANNELS;
+            subscriptionIds = NO_IDS;
+            count = 0;
+            closed = true;
+            return subscribed;
+        }
+
+        private int indexOf(String channel) {
+            for (int i = 0; i < count; i++) {
+                if (channels[i].equals(channel)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The handler of a replaying subscriber, its frames go out through sendReplayed
+     */
+    private static final class Replaying<T> implements ConnectionHandler<T> {
+        private final ConnectionHandler<T> handler;
+
+        Replaying(ConnectionHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void send(T msg) {
+            handler.send(msg);
+        }
+
+        @Override
+        public void sendEncoded(ByteBuffer... frameParts) {
+            handler.sendReplayed(frameParts);
+        }
+
+        @Override
+        public void close() throws IOException {
+            handler.close();
+        }
+    }
+
+    private static final class Snapshot<T> {
+        final Subscriber<T>[] subscribers;
+        final int[] connectionIds; // sorted, for isSubscribed
+
+        Snapshot(Subscriber<T>[] subscribers, int[] connectionIds) {
+            this.subscribers = subscribers;
+            this.connectionIds = connectionIds;
+        }
     }
 }
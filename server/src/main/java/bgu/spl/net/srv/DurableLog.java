@@ -0,0 +1,151 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The durable logs of all destinations, one ChannelLog directory per
+ * destination under stomp.log.dir. Opening it recovers every destination
+ * logged by a previous run, so offsets carry on where they stopped.
+ */
+public class DurableLog {
+
+    /**
+     * When the appended records are forced to disk
+     */
+    public enum FsyncPolicy {
+        NONE, // when the OS writes the pages back
+        INTERVAL, // every stomp.log.fsyncMillis
+        BATCH // before the receipts of a batch of publishes go out
+    }
+
+    // root of the logs, unset - no durable log
+    private static final String DIR = System.getProperty("stomp.log.dir", "");
+    private static final int SEGMENT_BYTES = Integer.getInteger("stomp.log.segmentBytes", 1 << 20);
+    /* package */ static final FsyncPolicy FSYNC = FsyncPolicy.valueOf(
+            System.getProperty("stomp.log.fsync", FsyncPolicy.INTERVAL.name()));
+    private static final long FSYNC_MILLIS = Long.getLong("stomp.log.fsyncMillis", 1000);
+
+    private final Path root;
+    private final Map<String, ChannelLog> logs = new ConcurrentHashMap<>();
+
+    private DurableLog(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Opens the logs under stomp.log.dir
+     *
+     * @return null if no log directory is set
+     */
+    public static DurableLog open() {
+        if (DIR.isEmpty()) {
+            return null;
+        }
+        DurableLog log = new DurableLog(Paths.get(DIR));
+        long records = 0;
+        try {
+            Files.createDirectories(log.root);
+            List<Path> dirs;
+            try (Stream<Path> list = Files.list(log.root)) {
+                dirs = list.filter(Files::isDirectory).toList();
+            }
+            for (Path dir : dirs) {
+                String destination = URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+                ChannelLog channelLog = ChannelLog.open(dir, SEGMENT_BYTES);
+                log.logs.put(destination, channelLog);
+                records += channelLog.nextOffset();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the durable log in " + DIR, e);
+        }
+        System.out.println("Durable log: recovered " + records + " messages of " + log.logs.size()
+                + " destinations from " + log.root);
+
+        if (FSYNC == FsyncPolicy.INTERVAL) {
+            Thread flusher = new Thread(log::flushPeriodically, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return log;
+    }
+
+    /**
+     * @return the destination's log, created on its first message
+     */
+    public ChannelLog log(String destination) {
+        return logs.computeIfAbsent(destination, d -> {
+            try {
+                return ChannelLog.open(directoryOf(d), SEGMENT_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // a directory right under the root, "." is escaped as well so no destination names "." or ".."
+    private Path directoryOf(String destination) throws IOException {
+        String name = URLEncoder.encode(destination, StandardCharsets.UTF_8).replace(".", "%2E");
+        Path dir = root.resolve(name).normalize();
+        if (name.isEmpty() || !dir.getParent().equals(root.normalize())) {
+            throw new IOException("Cannot log destination '" + destination + "'");
+        }
+        return dir;
+    }
+
+    /**
+     * @return the destination's log if it has one
+     */
+    public ChannelLog existing(String destination) {
+        return logs.get(destination);
+    }
+
+    /**
+     * Visits every logged message, each destination's oldest first
+     */
+    public void readAll(ChannelLog.RecordVisitor visitor) {
+        for (ChannelLog log : logs.values()) {
+            log.read(0, visitor);
+        }
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(FSYNC_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (ChannelLog log : logs.values()) {
+                try {
+                    log.sync();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the delivery of a message out of its logged bytes
+     */
+    public interface Encoder<T> {
+        /**
+         * @param offset the message's offset in its destination's log, -1 if not logged
+         * @param record the logged bytes, left untouched
+         */
+        FanOut.Delivery<T> delivery(long offset, ByteBuffer... record);
+    }
+}
@@ -0,0 +1,148 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands a message to every subscriber of a destination. Small fan-outs run on
+ * the caller's thread; large ones are split into chunks run in parallel on a
+ * dedicated ForkJoinPool, the caller running the first chunk itself.
+ * The caller returns only once every subscriber got the message, so the
+ * messages of one publisher still reach each subscriber in order.
+ *
+ * The threshold is either fixed (stomp.fanout.threshold) or chosen from the
+ * measured cost of one delivery: a fan-out goes parallel when it would take
+ * longer than two chunks of stomp.fanout.chunkMicros.
+ */
+public final class FanOut {
+
+    // subscribers from which a fan-out is split (0 - adaptive)
+    private static final int FIXED_THRESHOLD = Integer.getInteger("stomp.fanout.threshold", 0);
+    private static final int PARALLELISM = Integer.getInteger("stomp.fanout.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    // adaptive mode - how long one chunk should run
+    private static final long CHUNK_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("stomp.fanout.chunkMicros", 100));
+    private static final int MIN_CHUNK = 64; // below that a chunk costs more to hand off than to run
+    private static final int MIN_MEASURED = 16; // smaller fan-outs are too short to time
+    private static final double COST_WEIGHT = 1.0 / 8; // EWMA weight of the latest measurement
+
+    private static final LongAdder SEQUENTIAL = new LongAdder();
+    private static final LongAdder PARALLEL = new LongAdder();
+    private static final LongAdder CHUNKS = new LongAdder();
+
+    // nanoseconds to deliver to one subscriber, racy updates only lose a sample
+    private static volatile double subscriberCostNanos = 1000;
+
+    private FanOut() {
+    }
+
+    /**
+     * Delivers a message to one subscriber, may be called from several threads at once
+     */
+    public interface Delivery<T> {
+        void deliver(ConnectionsImpl.Subscriber<T> subscriber);
+    }
+
+    /**
+     * Runs the delivery for every subscriber and returns once all of them ran
+     */
+    public static <T> void deliver(ConnectionsImpl.Subscriber<T>[] subscribers, Delivery<T> delivery) {
+        int chunkSize = chunkSize();
+        int chunks = Math.min(PARALLELISM, subscribers.length / chunkSize);
+        if (chunks < 2) {
+            SEQUENTIAL.increment();
+            deliverRange(subscribers, 0, subscribers.length, delivery);
+            return;
+        }
+
+        PARALLEL.increment();
+        CHUNKS.add(chunks);
+        ForkJoinTask<?>[] others = new ForkJoinTask<?>[chunks - 1];
+        for (int c = 1; c < chunks; c++) {
+            int from = bound(subscribers.length, chunks, c);
+            int to = bound(subscribers.length, chunks, c + 1);
+            others[c - 1] = Pool.pool.submit(() -> deliverRange(subscribers, from, to, delivery));
+        }
+        try {
+            deliverRange(subscribers, 0, bound(subscribers.length, chunks, 1), delivery);
+        } finally {
+            for (ForkJoinTask<?> other : others) {
+                other.join();
+            }
+        }
+    }
+
+    private static <T> void deliverRange(ConnectionsImpl.Subscriber<T>[] subscribers, int from, int to,
+            Delivery<T> delivery) {
+        boolean measured = to - from >= MIN_MEASURED;
+        long start = measured ? System.nanoTime() : 0;
+        for (int i = from; i < to; i++) {
+            delivery.deliver(subscribers[i]);
+        }
+        if (measured) {
+            double cost = (double) (System.nanoTime() - start) / (to - from);
+            subscriberCostNanos += (cost - subscriberCostNanos) * COST_WEIGHT;
+        }
+    }
+
+    // subscribers [bound(c), bound(c + 1)) belong to chunk c
+    private static int bound(int subscribers, int chunks, int chunk) {
+        return (int) ((long) subscribers * chunk / chunks);
+    }
+
+    private static int chunkSize() {
+        if (FIXED_THRESHOLD > 0) {
+            return Math.max(1, FIXED_THRESHOLD / 2);
+        }
+        long size = (long) (CHUNK_NANOS / Math.max(1, subscriberCostNanos));
+        return (int) Math.max(MIN_CHUNK, Math.min(Integer.MAX_VALUE, size));
+    }
+
+    /**
+     * @return the number of subscribers from which a fan-out is split now
+     */
+    public static int threshold() {
+        return (int) Math.min(Integer.MAX_VALUE, 2L * chunkSize());
+    }
+
+    /**
+     * @return the measured average time to deliver to one subscriber
+     */
+    public static long subscriberCostNanos() {
+        return (long) subscriberCostNanos;
+    }
+
+    /**
+     * @return the number of fan-outs run entirely on the publisher's thread
+     */
+    public static long sequentialFanOuts() {
+        return SEQUENTIAL.sum();
+    }
+
+    /**
+     * @return the number of fan-outs split over the fan-out pool
+     */
+    public static long parallelFanOuts() {
+        return PARALLEL.sum();
+    }
+
+    /**
+     * @return the number of chunks the parallel fan-outs were split into
+     */
+    public static long chunks() {
+        return CHUNKS.sum();
+    }
+
+    // started by the first parallel fan-out
+    private static class Pool {
+        static final ForkJoinPool pool = new ForkJoinPool(PARALLELISM, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("fanout-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+}
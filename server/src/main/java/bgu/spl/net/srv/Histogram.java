@@ -0,0 +1,108 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in fixed buckets: one per value below 4, then four
+ * per power of two, so a bucket is at most 25% wide and recording is a shift
+ * and a striped increment. Percentiles are read from the counts collected
+ * since the previous sample.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value a non negative value, negative ones count as 0
+     */
+    public void record(long value) {
+        buckets[bucketOf(Math.max(0, value))].increment();
+    }
+
+    /**
+     * Takes the counts recorded since the previous sample, values recorded
+     * meanwhile may land in this sample or the next one
+     */
+    public Sample sample() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sumThenReset();
+            total += counts[i];
+        }
+        return new Sample(counts, total);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + exponent * SUB_BUCKETS + sub;
+    }
+
+    // the largest value of the bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << exponent;
+        return lower + (1L << exponent) - 1;
+    }
+
+    /**
+     * The values recorded between two samples
+     */
+    public static final class Sample {
+        private final long[] counts;
+        private final long count;
+
+        private Sample(long[] counts, long count) {
+            this.counts = counts;
+            this.count = count;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, 0 if nothing was recorded
+         */
+        public long percentile(double percent) {
+            long rank = (long) Math.ceil(count * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the upper bound of the highest bucket recorded into, 0 if none
+         */
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The latest messages published to one destination, capped by count and by
+ * bytes. A message is kept as the delivery that sent it live, which holds the
+ * already encoded frame parts, so replaying it to a new subscriber encodes
+ * nothing again.
+ * Not thread safe, the owner serializes appends and replays of a destination.
+ */
+public class MessageHistory<T> {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<Entry<T>> entries = new ArrayDeque<>();
+    private long bytes;
+
+    public MessageHistory(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retains a message, evicting the oldest ones over the caps
+     *
+     * @param bytes the size of the retained frame, counted against the byte cap
+     */
+    public void append(long messageId, int bytes, FanOut.Delivery<T> delivery) {
+        entries.addLast(new Entry<>(messageId, bytes, delivery));
+        this.bytes += bytes;
+        while (entries.size() > maxMessages || (this.bytes > maxBytes && entries.size() > 1)) {
+            this.bytes -= entries.removeFirst().bytes;
+        }
+    }
+
+    /**
+     * @return the deliveries of the requested retained messages, oldest first,
+     *         to run once the caller no longer holds the destination
+     */
+    public List<FanOut.Delivery<T>> replay(Replay request) {
+        List<FanOut.Delivery<T>> selected = new ArrayList<>();
+        if (request.logOffset >= 0) {
+            return selected; // served by the durable log
+        }
+        int skip = request.last >= 0 ? Math.max(0, entries.size() - request.last) : 0;
+        Iterator<Entry<T>> it = entries.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            Entry<T> entry = it.next();
+            if (i >= skip && entry.messageId > request.since) {
+                selected.add(entry.delivery);
+            }
+        }
+        return selected;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Which retained messages a new subscription asks for
+     */
+    public static final class Replay {
+        private final int last; // -1 - no count limit
+        private final long since; // Long.MIN_VALUE - no id limit
+        private final long logOffset; // -1 - not a durable log replay
+
+        private Replay(int last, long since, long logOffset) {
+            this.last = last;
+            this.since = since;
+            this.logOffset = logOffset;
+        }
+
+        /**
+         * @return the last n retained messages
+         */
+        public static Replay last(int n) {
+            return new Replay(Math.max(0, n), Long.MIN_VALUE, -1);
+        }
+
+        /**
+         * @return the retained messages published after the given message id
+         */
+        public static Replay since(long messageId) {
+            return new Replay(-1, messageId, -1);
+        }
+
+        /**
+         * @return the messages of the destination's durable log from the given offset on
+         */
+        public static Replay fromOffset(long offset) {
+            return new Replay(-1, Long.MIN_VALUE, Math.max(0, offset));
+        }
+
+        /**
+         * @return the durable log offset to replay from, -1 for a replay of the retained messages
+         */
+        public long logOffset() {
+            return logOffset;
+        }
+    }
+
+    private static final class Entry<T> {
+        final long messageId;
+        final int bytes;
+        final FanOut.Delivery<T> delivery;
+
+        Entry(long messageId, int bytes, FanOut.Delivery<T> delivery) {
+            this.messageId = messageId;
+            this.bytes = bytes;
+            this.delivery = delivery;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package bgu.spl.net.srv;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's metrics: counters, gauges and histograms registered by name.
+ * A name's first segment is its group ("latency.decodeNanos" belongs to
+ * "latency"), and each group is sampled onto its own $SYS destination.
+ * Recording is a striped increment; the registry maps are only touched when
+ * a metric is registered and when the metrics are sampled.
+ */
+public final class Metrics {
+
+    /**
+     * Destinations reserved for the server's own messages
+     */
+    public static final String SYS_PREFIX = "$SYS/";
+
+    // how often the metrics are published (0 - never, and the latencies are not measured)
+    public static final long INTERVAL_MILLIS = Long.getLong("stomp.metrics.intervalMillis", 0);
+    public static final boolean ENABLED = INTERVAL_MILLIS > 0;
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the counter registered under the name, created on first use
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a value read when the metrics are sampled, replacing a
+     * previous one of the same name
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * @return the histogram registered under the name, created on first use
+     */
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Reads every metric, the histograms as their count and percentiles since
+     * the previous sample
+     *
+     * @return group -> its metrics as "name: value" lines, sorted by name
+     */
+    public static Map<String, String> sample() {
+        Map<String, Long> values = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> values.put(name, counter.sum()));
+        GAUGES.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        HISTOGRAMS.forEach((name, histogram) -> {
+            Histogram.Sample sample = histogram.sample();
+            values.put(name + ".count", sample.count());
+            values.put(name + ".p50", sample.percentile(50));
+            values.put(name + ".p90", sample.percentile(90));
+            values.put(name + ".p99", sample.percentile(99));
+            values.put(name + ".max", sample.max());
+        });
+
+        Map<String, StringBuilder> groups = new TreeMap<>();
+        values.forEach((name, value) -> {
+            int dot = name.indexOf('.');
+            String group = dot < 0 ? name : name.substring(0, dot);
+            groups.computeIfAbsent(group, g -> new StringBuilder()).append(name).append(": ").append(value).append('\n');
+        });
+        Map<String, String> bodies = new TreeMap<>();
+        groups.forEach((group, body) -> bodies.put(group, body.toString()));
+        return bodies;
+    }
+
+    /**
+     * @return System.nanoTime(), or 0 when the metrics are off
+     */
+    public static long startTimer() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since startTimer() returned the given start
+     */
+    public static void stopTimer(Histogram histogram, long start) {
+        if (ENABLED) {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -7,22 +7,95 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
+    /**
+     * What to do with a consumer whose queued bytes crossed the high watermark
+     */
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST, // drop queued frames that were not started until the low watermark is reached
+        DROP_NEWEST, // drop new frames until the queue drains below the low watermark
+        DISCONNECT // drop the queue, send an error and close the connection
+    }
+
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; // 8k
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_GATHERED_BUFFERS = 64; // buffers handed to a single write call
+    // frames queued within this window after the first one leave in the same write (0 - no waiting)
+    private static final long WRITE_BATCH_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("stomp.write.batchWindowMicros", 0));
+    // bytes queued for one connection before the slow consumer policy applies
+    private static final long HIGH_WATERMARK = Long.getLong("stomp.write.highWatermark", 4L << 20);
+    private static final long LOW_WATERMARK = Math.min(HIGH_WATERMARK,
+            Long.getLong("stomp.write.lowWatermark", 1L << 20));
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.valueOf(
+            System.getProperty("stomp.write.slowConsumerPolicy", SlowConsumerPolicy.DISCONNECT.name()));
+    // how long a disconnected slow consumer gets to read its error frame
+    private static final long SLOW_CONSUMER_GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // stop reading from a connection with this many reads waiting for a worker (0 - never)
+    private static final int READ_PAUSE_MAILBOX_DEPTH = Integer.getInteger("stomp.read.pauseMailboxDepth", 0);
+
+    private static final LongAdder WRITE_CALLS = new LongAdder();
+    private static final LongAdder FRAMES_WRITTEN = new LongAdder();
+    private static final LongAdder FRAMES_DROPPED_OLDEST = new LongAdder();
+    private static final LongAdder FRAMES_DROPPED_NEWEST = new LongAdder();
+    private static final LongAdder SLOW_CONSUMER_DISCONNECTS = new LongAdder();
+    private static final LongAdder READ_PAUSES = new LongAdder();
+    private static final LongAdder QUEUED_BYTES = new LongAdder();
+    private static final LongAdder BYTES_IN = Metrics.counter("bytes.in");
+    private static final LongAdder BYTES_OUT = Metrics.counter("bytes.out");
+    private static final Histogram DECODE_NANOS = Metrics.histogram("latency.decodeNanos");
+    private static final Histogram PROCESS_NANOS = Metrics.histogram("latency.processNanos");
+    // bytes queued for a connection, seen by each new frame
+    private static final Histogram QUEUE_BYTES = Metrics.histogram("writes.queueBytes");
+    private static final LongAdder BUFFERS_ALLOCATED = Metrics.counter("buffers.allocated");
+    private static final AtomicInteger BUFFERS_POOLED = new AtomicInteger();
+
+    static {
+        Metrics.gauge("frames.out", FRAMES_WRITTEN::sum);
+        Metrics.gauge("writes.calls", WRITE_CALLS::sum);
+        Metrics.gauge("writes.queuedBytes", QUEUED_BYTES::sum);
+        Metrics.gauge("writes.droppedOldest", FRAMES_DROPPED_OLDEST::sum);
+        Metrics.gauge("writes.droppedNewest", FRAMES_DROPPED_NEWEST::sum);
+        Metrics.gauge("writes.slowConsumerDisconnects", SLOW_CONSUMER_DISCONNECTS::sum);
+        Metrics.gauge("reactor.readPauses", READ_PAUSES::sum);
+        Metrics.gauge("buffers.pooled", BUFFERS_POOLED::get);
+    }
+
+    // frame states, a frame is dropped only before the writer started it
+    private static final int QUEUED = 0;
+    private static final int WRITING = 1;
+    private static final int DROPPED = 2;
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // every entry is one frame, possibly made of several buffers
+    private final Queue<PendingFrame> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // the part of queuedBytes replayed on subscribe, which the slow consumer policy leaves alone
+    private final AtomicLong replayedBytes = new AtomicLong();
     private final SocketChannel chan;
     private final Reactor<T> reactor;
     private final ConnectionsImpl<T> connections;
     private final int connectionId;
     private volatile boolean protocolStarted = false;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean slowConsumer = new AtomicBoolean(false); // closing, sends are ignored
+    private volatile boolean refusingFrames = false; // DROP_NEWEST - above the high watermark
+    private volatile boolean writeArmed = false; // OP_WRITE wanted
+    private volatile boolean readPaused = false; // OP_READ cleared until the mailbox drains
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox();
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS]; // selector thread only
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
@@ -44,7 +117,11 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            int read = chan.read(buf);
+            success = read != -1;
+            if (read > 0) {
+                BYTES_IN.add(read);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -64,15 +141,20 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
                         }
                     }
 
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                            // StompMessagingProtocol sends responses via Connections
-                        }
+                    long start = Metrics.startTimer();
+                    List<T> messages = encdec.decode(buf);
+                    Metrics.stopTimer(DECODE_NANOS, start);
+                    for (T nextMessage : messages) {
+                        start = Metrics.startTimer();
+                        protocol.process(nextMessage);
+                        // StompMessagingProtocol sends responses via Connections
+                        Metrics.stopTimer(PROCESS_NANOS, start);
                     }
                 } finally {
                     releaseBuffer(buf);
+                    if (readPaused && mailbox.size() == 0) {
+                        resumeReading();
+                    }
                 }
             };
         } else {
@@ -83,12 +165,56 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     }
 
+    /* package */ ActorThreadPool.Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    /* package */ SocketChannel getChannel() {
+        return chan;
+    }
+
+    /**
+     * @return the selection ops this connection currently wants
+     */
+    /* package */ int interestOps() {
+        return (readPaused ? 0 : SelectionKey.OP_READ) | (writeArmed ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Called by the selector thread after handing a read to the worker pool,
+     * stops reading while too many reads of this connection wait for a worker
+     */
+    /* package */ void pauseReadingIfBehind() {
+        if (READ_PAUSE_MAILBOX_DEPTH <= 0 || readPaused || mailbox.size() < READ_PAUSE_MAILBOX_DEPTH) {
+            return;
+        }
+        readPaused = true;
+        READ_PAUSES.increment();
+        // the last read may have finished before the flag was seen
+        if (mailbox.size() == 0) {
+            readPaused = false;
+        }
+        reactor.updateInterestedOps(this);
+    }
+
+    private void resumeReading() {
+        readPaused = false;
+        reactor.updateInterestedOps(this);
+    }
+
     public void close() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        connections.disconnect(connectionId);
+
+        // nothing queued will be written anymore
+        PendingFrame frame;
+        while ((frame = writeQueue.poll()) != null) {
+            discard(frame);
+        }
     }
 
     public boolean isClosed() {
@@ -98,44 +224,325 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     public void continueWrite() {
         while (!writeQueue.isEmpty()) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+                // gather as many whole queued frames as fit into a single write call
+                int count = 0;
+                for (PendingFrame frame : writeQueue) {
+                    if (count + frame.parts.length > gathered.length && count > 0) {
+                        break;
+                    }
+                    if (!frame.startWriting()) {
+                        continue; // dropped
+                    }
+                    for (ByteBuffer part : frame.parts) {
+                        if (part.hasRemaining() && count < gathered.length) {
+                            gathered[count++] = part;
+                        }
+                    }
+                }
+
+                if (count > 0) {
+                    BYTES_OUT.add(chan.write(gathered, 0, count));
+                    WRITE_CALLS.increment();
+                }
+                boolean drained = count == 0 || !gathered[count - 1].hasRemaining();
+                Arrays.fill(gathered, 0, count, null);
+
+                PendingFrame head;
+                while ((head = writeQueue.peek()) != null && (head.isDropped() || head.isWritten())) {
+                    // remove(head) and not poll(), a dropping sender may have removed it already
+                    if (writeQueue.remove(head) && !head.isDropped()) {
+                        release(head);
+                        FRAMES_WRITTEN.increment();
+                    }
+                }
+                if (refusingFrames && liveBytes() <= LOW_WATERMARK) {
+                    refusingFrames = false;
+                }
+                if (!drained) {
+                    return; // the socket buffer is full, wait for the next OP_WRITE
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
             }
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate())
-                close();
-            else
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        if (protocol.shouldTerminate() || slowConsumer.get()) {
+            close();
+        } else {
+            writeArmed = false;
+            if (!writeQueue.isEmpty()) {
+                writeArmed = true; // a frame was queued after the loop ended
+            }
+            reactor.updateInterestedOps(this);
         }
     }
 
+    /**
+     * @return the number of frames written to all the non blocking connections
+     */
+    public static long framesWritten() {
+        return FRAMES_WRITTEN.sum();
+    }
+
+    /**
+     * @return the number of write calls made for all the non blocking connections
+     */
+    public static long writeCalls() {
+        return WRITE_CALLS.sum();
+    }
+
+    /**
+     * @return the number of write calls saved by writing several frames in one call
+     */
+    public static long writeCallsAvoided() {
+        return Math.max(0, FRAMES_WRITTEN.sum() - WRITE_CALLS.sum());
+    }
+
+    /**
+     * @return the number of queued frames dropped by the DROP_OLDEST policy
+     */
+    public static long framesDroppedOldest() {
+        return FRAMES_DROPPED_OLDEST.sum();
+    }
+
+    /**
+     * @return the number of new frames refused by the DROP_NEWEST policy
+     */
+    public static long framesDroppedNewest() {
+        return FRAMES_DROPPED_NEWEST.sum();
+    }
+
+    /**
+     * @return the number of connections closed by the DISCONNECT policy
+     */
+    public static long slowConsumerDisconnects() {
+        return SLOW_CONSUMER_DISCONNECTS.sum();
+    }
+
+    /**
+     * @return the number of times reading from a connection was paused
+     */
+    public static long readPauses() {
+        return READ_PAUSES.sum();
+    }
+
+    /**
+     * @return the bytes queued and not written yet, over all the non blocking connections
+     */
+    public static long totalQueuedBytes() {
+        return QUEUED_BYTES.sum();
+    }
+
+    /**
+     * @return the bytes queued for this connection and not written yet
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
     private static ByteBuffer leaseBuffer() {
         ByteBuffer buff = BUFFER_POOL.poll();
         if (buff == null) {
+            BUFFERS_ALLOCATED.increment();
             return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
         }
+        BUFFERS_POOLED.decrementAndGet();
 
         buff.clear();
         return buff;
     }
 
     private static void releaseBuffer(ByteBuffer buff) {
+        BUFFERS_POOLED.incrementAndGet();
         BUFFER_POOL.add(buff);
     }
 
     @Override
     public void send(T msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        sendEncoded(ByteBuffer.wrap(encdec.encode(msg)));
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer... frameParts) {
+        if (slowConsumer.get()) {
+            return; // only the error frame goes out now
+        }
+
+        int bytes = 0;
+        for (ByteBuffer part : frameParts) {
+            bytes += part.remaining();
+        }
+
+        // a single frame larger than the watermark is still sent to an idle consumer
+        long queued = liveBytes();
+        boolean overHighWatermark = queued > 0 && queued + bytes > HIGH_WATERMARK;
+        switch (SLOW_CONSUMER_POLICY) {
+            case DROP_NEWEST:
+                if (overHighWatermark) {
+                    refusingFrames = true;
+                }
+                if (refusingFrames) {
+                    FRAMES_DROPPED_NEWEST.increment();
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                if (overHighWatermark) {
+                    dropQueuedFrames(LOW_WATERMARK - bytes, false, FRAMES_DROPPED_OLDEST);
+                }
+                break;
+            case DISCONNECT:
+                if (overHighWatermark) {
+                    disconnectSlowConsumer();
+                    return;
+                }
+                break;
+        }
+
+        enqueue(new PendingFrame(frameParts, bytes, false));
+    }
+
+    @Override
+    public void sendReplayed(ByteBuffer... frameParts) {
+        if (slowConsumer.get()) {
+            return;
+        }
+        int bytes = 0;
+        for (ByteBuffer part : frameParts) {
+            bytes += part.remaining();
+        }
+        // the parts are views of the history or the mapped log, queueing them copies no payload
+        enqueue(new PendingFrame(frameParts, bytes, true));
+    }
+
+    private void enqueue(PendingFrame frame) {
+        if (frame.replayed) {
+            replayedBytes.addAndGet(frame.bytes);
+        }
+        QUEUE_BYTES.record(queuedBytes.addAndGet(frame.bytes) - frame.bytes);
+        QUEUED_BYTES.add(frame.bytes);
+        writeQueue.add(frame);
+        if (!chan.isOpen()) {
+            // closed while queueing, close() may have missed this frame
+            if (writeQueue.remove(frame)) {
+                discard(frame);
+            }
+            return;
+        }
+
+        if (WRITE_BATCH_WINDOW_NANOS == 0) {
+            writeArmed = true;
+            reactor.updateInterestedOps(this);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            // the frames queued until the timer fires are written together
+            reactor.schedule(() -> {
+                flushScheduled.set(false);
+                writeArmed = true;
+                reactor.updateInterestedOps(this);
+            }, WRITE_BATCH_WINDOW_NANOS);
+        }
+    }
+
+    // the queued bytes the slow consumer policy looks at, the replayed ones aside
+    private long liveBytes() {
+        return queuedBytes.get() - replayedBytes.get();
+    }
+
+    /**
+     * Drops queued frames the writer did not start, oldest first, until at most
+     * target bytes are queued (frames being written cannot be dropped), replayed
+     * frames only if asked to
+     */
+    private void dropQueuedFrames(long target, boolean replayed, LongAdder counter) {
+        for (PendingFrame frame : writeQueue) {
+            if ((replayed ? queuedBytes.get() : liveBytes()) <= target) {
+                return;
+            }
+            if ((replayed || !frame.replayed) && frame.drop()) {
+                writeQueue.remove(frame);
+                release(frame);
+                counter.increment();
+            }
+        }
+    }
+
+    private void disconnectSlowConsumer() {
+        if (!slowConsumer.compareAndSet(false, true)) {
+            return;
+        }
+        SLOW_CONSUMER_DISCONNECTS.increment();
+        dropQueuedFrames(0, true, FRAMES_DROPPED_OLDEST);
+
+        T error = protocol.slowConsumerError();
+        if (error != null) {
+            byte[] encoded = encdec.encode(error);
+            enqueue(new PendingFrame(new ByteBuffer[] { ByteBuffer.wrap(encoded) }, encoded.length, false));
+        } else {
+            writeArmed = true;
+            reactor.updateInterestedOps(this); // continueWrite closes once the queue is empty
+        }
+        // a consumer that does not read at all never lets the error frame out
+        reactor.schedule(this::close, SLOW_CONSUMER_GRACE_NANOS);
+    }
+
+    private void discard(PendingFrame frame) {
+        if (frame.discard()) {
+            release(frame);
+        }
+    }
+
+    // the mirror of enqueue, so a sender never sees more live bytes than there are
+    private void release(PendingFrame frame) {
+        queuedBytes.addAndGet(-frame.bytes);
+        QUEUED_BYTES.add(-frame.bytes);
+        if (frame.replayed) {
+            replayedBytes.addAndGet(-frame.bytes);
+        }
+    }
+
+    /**
+     * A queued frame and the bytes it holds
+     */
+    private static class PendingFrame {
+        final ByteBuffer[] parts;
+        final int bytes;
+        final boolean replayed; // sent by sendReplayed
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        PendingFrame(ByteBuffer[] parts, int bytes, boolean replayed) {
+            this.parts = parts;
+            this.bytes = bytes;
+            this.replayed = replayed;
+        }
+
+        // called by the writer, false if the frame was dropped
+        boolean startWriting() {
+            return state.get() == WRITING || state.compareAndSet(QUEUED, WRITING);
+        }
+
+        // called by senders, a frame the writer started cannot be dropped
+        boolean drop() {
+            return state.compareAndSet(QUEUED, DROPPED);
+        }
+
+        // called on close, drops the frame in any state
+        boolean discard() {
+            return state.getAndSet(DROPPED) != DROPPED;
+        }
+
+        boolean isDropped() {
+            return state.get() == DROPPED;
+        }
+
+        boolean isWritten() {
+            for (ByteBuffer part : parts) {
+                if (part.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
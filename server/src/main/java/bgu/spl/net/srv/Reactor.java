@@ -5,28 +5,58 @@ import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    private static final Histogram READY_KEYS = Metrics.histogram("reactor.readyKeys");
+    private static final LongAdder ACCEPTED = Metrics.counter("reactor.accepted");
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
     private final ConnectionsImpl<T> connections;
-    private Selector selector;
+    private volatile Selector selector;
+
+    // selector threads that own the accepted channels (empty - the acceptor owns them)
+    private final List<Reactor<T>> subReactors;
+    private int nextSubReactor = 0; // only used by the acceptor thread
 
-    private Thread selectorThread;
+    private volatile Thread selectorThread;
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // delayed selector tasks ordered by deadline, only used by the selector thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+
+        this(numThreads, 0, port, protocolFactory, readerFactory, connections);
+    }
 
+    /**
+     * @param numSelectors number of selector threads the accepted channels are
+     *                     spread over, 0 handles everything on the acceptor thread
+     */
     public Reactor(
             int numThreads,
+            int numSelectors,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory,
@@ -37,25 +67,52 @@ public class Reactor<T> implements Server<T> {
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
         this.connections = connections;
+        this.subReactors = new ArrayList<>(numSelectors);
+        for (int i = 0; i < numSelectors; i++) {
+            subReactors.add(new Reactor<>(pool, protocolFactory, readerFactory, connections));
+        }
+    }
+
+    /**
+     * Sub reactor - does not listen, only serves the channels the acceptor hands to it
+     */
+    private Reactor(
+            ActorThreadPool pool,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+
+        this.pool = pool;
+        this.port = -1;
+        this.protocolFactory = protocolFactory;
+        this.readerFactory = readerFactory;
+        this.connections = connections;
+        this.subReactors = new ArrayList<>(0);
     }
 
     @Override
     public void serve() {
         selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        boolean acceptor = port >= 0;
+        try (Selector selector = this.selector != null ? this.selector : Selector.open();
+                ServerSocketChannel serverSock = acceptor ? ServerSocketChannel.open() : null) {
 
             this.selector = selector;
 
-            serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("Server started");
+            if (acceptor) {
+                startSubReactors();
+                serverSock.bind(new InetSocketAddress(port));
+                serverSock.configureBlocking(false);
+                serverSock.register(selector, SelectionKey.OP_ACCEPT);
+                System.out.println("Server started");
+            }
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                selector.select();
+                select(selector);
+                READY_KEYS.record(selector.selectedKeys().size());
                 runSelectionThreadTasks();
+                runDueTimers();
 
                 for (SelectionKey key : selector.selectedKeys()) {
 
@@ -78,42 +135,139 @@ public class Reactor<T> implements Server<T> {
             ex.printStackTrace();
         }
 
-        System.out.println("server closed!!!");
-        pool.shutdown();
+        if (acceptor) {
+            closeSubReactors();
+            System.out.println("server closed!!!");
+            pool.shutdown();
+        }
     }
 
-    /* package */ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
+    /**
+     * Applies the handler's current interest ops on the selector thread, so
+     * concurrent updates (writes queued, reads paused) cannot undo each other
+     */
+    /* package */ void updateInterestedOps(NonBlockingConnectionHandler<T> handler) {
+        final SelectionKey key = handler.getChannel().keyFor(selector);
         if (key == null)
             return;
 
         if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
+            if (key.isValid()) {
+                key.interestOps(handler.interestOps());
+            }
         } else {
             selectorTasks.add(() -> {
                 if (key.isValid()) {
-                    key.interestOps(ops);
+                    key.interestOps(handler.interestOps());
                 }
             });
             selector.wakeup();
         }
     }
 
+    /**
+     * Runs the task on the selector thread once the delay passed. The selector
+     * wakes up with millisecond resolution, so the delay is a lower bound.
+     */
+    /* package */ void schedule(Runnable task, long delayNanos) {
+        Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+        if (Thread.currentThread() == selectorThread) {
+            timers.add(timer);
+        } else {
+            selectorTasks.add(() -> timers.add(timer));
+            selector.wakeup();
+        }
+    }
+
+    private void select(Selector selector) throws IOException {
+        Timer next = timers.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+
+        long waitNanos = next.deadline - System.nanoTime();
+        if (waitNanos <= 0) {
+            selector.selectNow();
+        } else {
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+        }
+    }
+
+    private void runDueTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            timers.poll().task.run();
+        }
+    }
+
     private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
         SocketChannel clientChan = serverChan.accept();
         clientChan.configureBlocking(false);
+        ACCEPTED.increment();
 
         // Register connection first to get ID
         int connectionId = connections.registerAndGetId(null);
 
+        Reactor<T> owner = nextOwner();
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this,
+                owner,
                 connections,
                 connectionId);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+
+        if (owner == this) {
+            clientChan.register(selector, SelectionKey.OP_READ, handler);
+        } else {
+            owner.register(clientChan, handler);
+        }
+    }
+
+    /**
+     * Hands the accepted channels to the sub reactors in round robin order
+     */
+    private Reactor<T> nextOwner() {
+        if (subReactors.isEmpty()) {
+            return this;
+        }
+        Reactor<T> owner = subReactors.get(nextSubReactor);
+        nextSubReactor = (nextSubReactor + 1) % subReactors.size();
+        return owner;
+    }
+
+    /**
+     * Registers a channel on this reactor's selector, from the acceptor thread
+     */
+    private void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        selectorTasks.add(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        });
+        selector.wakeup();
+    }
+
+    private void startSubReactors() throws IOException {
+        for (int i = 0; i < subReactors.size(); i++) {
+            Reactor<T> sub = subReactors.get(i);
+            // opened here so the acceptor can register channels before the thread runs
+            sub.selector = Selector.open();
+            new Thread(sub::serve, "reactor-selector-" + i).start();
+        }
+    }
+
+    private void closeSubReactors() {
+        for (Reactor<T> sub : subReactors) {
+            try {
+                sub.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
     }
 
     private void handleReadWrite(SelectionKey key) {
@@ -123,7 +277,8 @@ public class Reactor<T> implements Server<T> {
         if (key.isReadable()) {
             Runnable task = handler.continueRead();
             if (task != null) {
-                pool.submit(handler, task);
+                pool.submit(handler.getMailbox(), task);
+                handler.pauseReadingIfBehind();
             }
         }
 
@@ -140,7 +295,24 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders the deliveries of one destination. Under the lock a publish logs and
+ * retains its message and a replaying subscription is added, each queueing
+ * its delivery; the deliveries then run in that order, after the lock is
+ * released and on one thread at a time. So the subscribers see the log's
+ * order while no socket write or fan-out wait happens under a lock, and a
+ * publisher finding the deliveries already running leaves its own to that
+ * thread instead of waiting for a slow reader.
+ */
+final class Sequencer<T> {
+
+    // the destination's retained messages, guarded by the lock, null if none are retained
+    final MessageHistory<T> history;
+    // a lock and not a monitor, so virtual threads do not pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Runnable> deliveries = new ArrayDeque<>(); // guarded by lock
+    private boolean delivering; // guarded by lock, a thread runs the deliveries
+
+    Sequencer(MessageHistory<T> history) {
+        this.history = history;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Queues a delivery behind the ones queued before it, with the lock held
+     *
+     * @return true if the caller is to run the deliveries, by deliver() once it unlocked
+     */
+    boolean add(Runnable delivery) {
+        deliveries.add(delivery);
+        if (delivering) {
+            return false;
+        }
+        delivering = true;
+        return true;
+    }
+
+    /**
+     * Runs the queued deliveries until there are none left
+     */
+    void deliver() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable next;
+                lock.lock();
+                try {
+                    next = deliveries.poll();
+                    if (next == null) {
+                        delivering = false;
+                        drained = true;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    next.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            if (!drained) {
+                // an Error, the next delivery queued takes over the rest
+                lock.lock();
+                try {
+                    delivering = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -38,6 +38,32 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     * This function returns a new instance of a thread per client pattern server
+     * that runs every client on its own virtual thread
+     * 
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creates new
+     *                              StompMessagingProtocols
+     * @param encoderDecoderFactory A factory that creates new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                Thread.ofVirtual().start(handler);
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * 
@@ -59,4 +85,30 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, connections);
     }
 
-}
+    /**
+     * This function returns a new instance of a reactor pattern server that
+     * accepts on one thread and spreads the accepted clients over several
+     * selector threads
+     * 
+     * @param nthreads              Number of threads available for protocol
+     *                              processing
+     * @param nselectors            Number of selector threads serving the
+     *                              accepted clients
+     * @param port                  The port for the server socket
+     * @param protocolFactory       A factory that creates new
+     *                              StompMessagingProtocols
+     * @param encoderDecoderFactory A factory that creates new MessageEncoderDecoder
+     * @param <T>                   The Message Object for the protocol
+     * @return A new multi reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+        return new Reactor<T>(nthreads, nselectors, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
+}
\ No newline at end of file
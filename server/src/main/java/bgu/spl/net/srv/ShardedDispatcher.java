@@ -0,0 +1,279 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes publishes through N dispatcher shards, each a single thread that owns
+ * the subscriptions of the destinations hashed to it. The shard state is plain
+ * collections touched by that thread only; connection actors hand it commands
+ * through a bounded ring, so one destination's messages are routed in the
+ * order they were forwarded and routing scales with the number of shards.
+ * An exact subscription lives in its destination's shard, a wildcard one in
+ * every shard since it may match destinations of any of them.
+ * Under the BATCH fsync policy a shard forces the logs it appended to once
+ * per batch of commands, then runs the batch's publish callbacks.
+ */
+public class ShardedDispatcher<T> {
+
+    // most destinations a shard caches the subscribers of
+    private static final int SNAPSHOT_CACHE_SIZE = 10_000;
+    // most commands a shard runs before forcing its appended records
+    private static final int SYNC_BATCH = 64;
+
+    private final Shard<T>[] shards;
+    private final DurableLog log;
+    private final LongAdder publishes = new LongAdder();
+
+    /**
+     * @param log the destinations' durable logs, may be null
+     */
+    public ShardedDispatcher(int shards, int ringCapacity, DurableLog log) {
+        this.log = log;
+        this.shards = newShards(shards);
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard<>(ringCapacity);
+            Thread thread = new Thread(this.shards[i], "dispatch-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Subscribes once every shard the pattern belongs to applied it
+     *
+     * @param onSubscribed runs on a shard thread once the subscription is live, may be null
+     */
+    public void subscribe(String pattern, int connectionId, int subscriptionId, ConnectionHandler<T> handler,
+            MessageHistory.Replay replay, DurableLog.Encoder<T> encoder, Runnable onSubscribed) {
+        Shard<T>[] owners = ownersOf(pattern);
+        Countdown countdown = new Countdown(owners.length, onSubscribed);
+        for (Shard<T> shard : owners) {
+            shard.ring.put(() -> {
+                shard.subscribe(pattern, connectionId, subscriptionId, handler);
+                if (replay != null) {
+                    // the shard thread orders the destination's deliveries, so it replays inline
+                    ConnectionsImpl.replay(log, shard.history(pattern), pattern, replay, encoder,
+                            new ConnectionsImpl.Subscriber<>(handler, connectionId, subscriptionId)).run();
+                }
+                countdown.arrive();
+            });
+        }
+    }
+
+    public void unsubscribe(String pattern, int connectionId) {
+        for (Shard<T> shard : ownersOf(pattern)) {
+            shard.ring.put(() -> shard.unsubscribe(pattern, connectionId));
+        }
+    }
+
+    /**
+     * Removes all the connection's subscriptions
+     */
+    public void disconnect(int connectionId, String[] patterns) {
+        for (String pattern : patterns) {
+            unsubscribe(pattern, connectionId);
+        }
+        for (Shard<T> shard : shards) {
+            shard.ring.put(() -> shard.handlers.remove(connectionId));
+        }
+    }
+
+    /**
+     * Hands the message to the destination's shard, which logs and retains
+     * it and delivers it to the matching subscribers
+     *
+     * @param onDelivered runs on the shard thread after the last delivery, may be null
+     */
+    public void publish(String destination, long messageId, DurableLog.Encoder<T> encoder, Runnable onDelivered,
+            ByteBuffer... message) {
+        publishes.increment();
+        Shard<T> shard = shards[shardOf(destination)];
+        shard.ring.put(() -> {
+            FanOut.Delivery<T> delivery = ConnectionsImpl.record(log,
+                    ConnectionsImpl.HISTORY_MESSAGES > 0 && !destination.startsWith(Metrics.SYS_PREFIX)
+                            ? shard.history(destination)
+                            : null,
+                    destination, messageId, encoder, message);
+            ConnectionsImpl.fanOut(shard.subscribers(destination), delivery);
+            ChannelLog channelLog = log != null && DurableLog.FSYNC == DurableLog.FsyncPolicy.BATCH
+                    ? log.existing(destination)
+                    : null;
+            if (channelLog != null) {
+                shard.unsynced.put(channelLog, Boolean.TRUE);
+                if (onDelivered != null) {
+                    shard.afterSync.add(onDelivered);
+                }
+            } else if (onDelivered != null) {
+                onDelivered.run();
+            }
+        });
+    }
+
+    /**
+     * @return the number of publishes forwarded to the shards
+     */
+    public long publishes() {
+        return publishes.sum();
+    }
+
+    /**
+     * @return the number of times a connection actor waited for a full shard ring
+     */
+    public long ringFullWaits() {
+        long waits = 0;
+        for (Shard<T> shard : shards) {
+            waits += shard.ring.producerWaits();
+        }
+        return waits;
+    }
+
+    private Shard<T>[] ownersOf(String pattern) {
+        if (SubscriptionTrie.isWildcard(pattern)) {
+            return shards;
+        }
+        return Arrays.copyOfRange(shards, shardOf(pattern), shardOf(pattern) + 1);
+    }
+
+    private int shardOf(String destination) {
+        return Math.floorMod(destination.hashCode(), shards.length);
+    }
+
+    // generic arrays cannot be created, only cast
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T> Shard<T>[] newShards(int length) {
+        return new Shard[length];
+    }
+
+    private static final class Shard<T> implements Runnable {
+        final BoundedRing<Runnable> ring;
+        // everything below is touched by the shard thread only
+        final SubscriptionTrie subscriptions = new SubscriptionTrie();
+        final Map<Integer, ConnectionHandler<T>> handlers = new HashMap<>();
+        final Map<String, ConnectionsImpl.Subscriber<T>[]> snapshots = new HashMap<>();
+        final Map<String, MessageHistory<T>> histories = new HashMap<>();
+        // BATCH fsync policy - logs appended to and callbacks waiting for the next force
+        final Map<ChannelLog, Boolean> unsynced = new IdentityHashMap<>();
+        final List<Runnable> afterSync = new ArrayList<>();
+        int sinceSync;
+
+        Shard(int ringCapacity) {
+            this.ring = new BoundedRing<>(ringCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable command = ring.poll();
+                if (command == null) {
+                    sync();
+                    ring.awaitItems();
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+                if (++sinceSync >= SYNC_BATCH) {
+                    sync();
+                }
+            }
+        }
+
+        // forces the logs appended to since the last batch, then lets the batch's publishers know
+        private void sync() {
+            sinceSync = 0;
+            if (unsynced.isEmpty() && afterSync.isEmpty()) {
+                return;
+            }
+            for (ChannelLog log : unsynced.keySet()) {
+                try {
+                    log.sync();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            unsynced.clear();
+            for (Runnable callback : afterSync) {
+                try {
+                    callback.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            afterSync.clear();
+        }
+
+        MessageHistory<T> history(String destination) {
+            return histories.computeIfAbsent(destination, d -> new MessageHistory<>(
+                    Math.max(0, ConnectionsImpl.HISTORY_MESSAGES), ConnectionsImpl.HISTORY_BYTES));
+        }
+
+        void subscribe(String pattern, int connectionId, int subscriptionId, ConnectionHandler<T> handler) {
+            handlers.put(connectionId, handler);
+            subscriptions.add(pattern, connectionId, subscriptionId);
+            invalidate(pattern);
+        }
+
+        void unsubscribe(String pattern, int connectionId) {
+            subscriptions.remove(pattern, connectionId);
+            invalidate(pattern);
+        }
+
+        ConnectionsImpl.Subscriber<T>[] subscribers(String destination) {
+            ConnectionsImpl.Subscriber<T>[] snapshot = snapshots.get(destination);
+            if (snapshot != null) {
+                return snapshot;
+            }
+
+            Map<Integer, Integer> matches = subscriptions.match(destination);
+            ConnectionsImpl.Subscriber<T>[] subscribers = ConnectionsImpl.newSubscribers(matches.size());
+            int count = 0;
+            for (Map.Entry<Integer, Integer> match : matches.entrySet()) {
+                ConnectionHandler<T> handler = handlers.get(match.getKey());
+                if (handler != null) {
+                    subscribers[count++] = new ConnectionsImpl.Subscriber<>(handler, match.getKey(), match.getValue());
+                }
+            }
+            snapshot = Arrays.copyOf(subscribers, count);
+            if (snapshots.size() >= SNAPSHOT_CACHE_SIZE) {
+                snapshots.clear();
+            }
+            snapshots.put(destination, snapshot);
+            return snapshot;
+        }
+
+        private void invalidate(String pattern) {
+            if (SubscriptionTrie.isWildcard(pattern)) {
+                snapshots.clear();
+            } else {
+                snapshots.remove(pattern);
+            }
+        }
+    }
+
+    // runs the callback once every shard involved arrived
+    private static final class Countdown {
+        private final AtomicInteger remaining;
+        private final Runnable callback;
+
+        Countdown(int parties, Runnable callback) {
+            this.remaining = new AtomicInteger(parties);
+            this.callback = callback;
+        }
+
+        void arrive() {
+            if (remaining.decrementAndGet() == 0 && callback != null) {
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package bgu.spl.net.srv;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Subscriptions indexed by destination segments ("worldcup/groupA/Germany_Japan").
+ * A pattern segment "*" matches exactly one segment and "#" matches any number
+ * of segments, including none. Neither matches a first segment starting with
+ * "$" ("$SYS"), those destinations are only matched by name. Matching walks only the branches the published
+ * destination can reach, so it costs O(depth) plus the subscribers found rather
+ * than O(patterns).
+ * Not thread safe, ConnectionsImpl guards it.
+ */
+public class SubscriptionTrie {
+
+    public static final String ONE_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "#";
+
+    private final Node root = new Node();
+
+    /**
+     * @return true if the pattern has a wildcard segment
+     */
+    public static boolean isWildcard(String pattern) {
+        for (String segment : split(pattern)) {
+            if (segment.equals(ONE_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches a single pattern, without a trie
+     *
+     * @return true if the pattern matches the published destination
+     */
+    public static boolean matches(String pattern, String destination) {
+        String[] segments = split(destination);
+        return matches(split(pattern), 0, segments, 0, reserved(segments));
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] destination, int d, int reserved) {
+        if (p == pattern.length) {
+            return d == destination.length;
+        }
+        if (pattern[p].equals(ANY_SEGMENTS)) {
+            for (int skip = d; skip <= lastSkip(destination, d, reserved); skip++) {
+                if (matches(pattern, p + 1, destination, skip, reserved)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return d < destination.length
+                && ((pattern[p].equals(ONE_SEGMENT) && d != reserved) || pattern[p].equals(destination[d]))
+                && matches(pattern, p + 1, destination, d + 1, reserved);
+    }
+
+    /**
+     * Adds (or replaces) the subscription of a connection to a pattern
+     */
+    public void add(String pattern, int connectionId, int subscriptionId) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        node.subscribers.put(connectionId, subscriptionId);
+    }
+
+    /**
+     * Removes the subscription of a connection to a pattern, along with the
+     * branches left empty
+     */
+    public void remove(String pattern, int connectionId) {
+        remove(root, split(pattern), 0, connectionId);
+    }
+
+    private boolean remove(Node node, String[] segments, int at, int connectionId) {
+        if (at == segments.length) {
+            node.subscribers.remove(connectionId);
+        } else {
+            Node child = node.children.get(segments[at]);
+            if (child != null && remove(child, segments, at + 1, connectionId)) {
+                node.children.remove(segments[at]);
+            }
+        }
+        return node.isEmpty();
+    }
+
+    /**
+     * Finds the subscriptions matching a published destination. A connection
+     * matching several patterns appears once, with the subscription of the most
+     * specific one (exact segments are tried before "*", and "*" before "#").
+     *
+     * @return connection id to subscription id, in match order
+     */
+    public Map<Integer, Integer> match(String destination) {
+        Map<Integer, Integer> matches = new LinkedHashMap<>();
+        String[] segments = split(destination);
+        match(root, segments, 0, reserved(segments), matches);
+        return matches;
+    }
+
+    private void match(Node node, String[] segments, int at, int reserved, Map<Integer, Integer> matches) {
+        if (at == segments.length) {
+            node.subscribers.addTo(matches);
+        } else {
+            Node exact = node.children.get(segments[at]);
+            if (exact != null) {
+                match(exact, segments, at + 1, reserved, matches);
+            }
+            Node one = node.children.get(ONE_SEGMENT);
+            if (one != null && at != reserved) {
+                match(one, segments, at + 1, reserved, matches);
+            }
+        }
+
+        Node any = node.children.get(ANY_SEGMENTS);
+        if (any != null) {
+            // "#" swallows the next 0..n segments
+            for (int skip = at; skip <= lastSkip(segments, at, reserved); skip++) {
+                match(any, segments, skip, reserved, matches);
+            }
+        }
+    }
+
+    // the index of the destination's first named segment if it starts with "$", -1 if it does not
+    private static int reserved(String[] segments) {
+        int first = segments.length > 0 && segments[0].isEmpty() ? 1 : 0; // "/$SYS/..." splits to "", "$SYS", ...
+        return first < segments.length && segments[first].startsWith("$") ? first : -1;
+    }
+
+    // how far a "#" at segment from may swallow, never past the reserved segment
+    private static int lastSkip(String[] segments, int from, int reserved) {
+        return from <= reserved ? reserved : segments.length;
+    }
+
+    private static String[] split(String destination) {
+        return destination.split("/");
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>(4);
+        final SubscriberTable subscribers = new SubscriberTable();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.size == 0;
+        }
+    }
+
+    /**
+     * connection id -> subscription id, open addressing over two int arrays
+     * (a channel can have thousands of subscribers, boxed entries would dominate)
+     */
+    private static class SubscriberTable {
+        private static final int[] EMPTY = new int[0];
+
+        private int[] keys = EMPTY; // connection id + 1, 0 - free slot
+        private int[] values = EMPTY;
+        private int size;
+
+        void put(int connectionId, int subscriptionId) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(Math.max(4, keys.length * 2));
+            }
+            int key = connectionId + 1;
+            int mask = keys.length - 1;
+            int index = slot(key, mask);
+            while (keys[index] != 0 && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (keys[index] == 0) {
+                keys[index] = key;
+                size++;
+            }
+            values[index] = subscriptionId;
+        }
+
+        void remove(int connectionId) {
+            if (size == 0) {
+                return;
+            }
+            int key = connectionId + 1;
+            int mask = keys.length - 1;
+            int index = slot(key, mask);
+            while (keys[index] != key) {
+                if (keys[index] == 0) {
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            size--;
+            // shift the rest of the probe chain back instead of leaving a tombstone
+            int free = index;
+            for (int next = (free + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                int home = slot(keys[next], mask);
+                if (((next - home) & mask) >= ((next - free) & mask)) {
+                    keys[free] = keys[next];
+                    values[free] = values[next];
+                    free = next;
+                }
+            }
+            keys[free] = 0;
+            if (size == 0) {
+                keys = EMPTY;
+                values = EMPTY;
+            }
+        }
+
+        void addTo(Map<Integer, Integer> matches) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    matches.putIfAbsent(keys[i] - 1, values[i]);
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[capacity];
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i] - 1, oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}